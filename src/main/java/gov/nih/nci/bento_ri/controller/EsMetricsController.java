@@ -0,0 +1,88 @@
+package gov.nih.nci.bento_ri.controller;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import gov.nih.nci.bento_ri.service.Bulkheads;
+import gov.nih.nci.bento_ri.service.CircuitBreaker;
+import gov.nih.nci.bento_ri.service.EndpointRouter;
+import gov.nih.nci.bento_ri.service.EsMetrics;
+import gov.nih.nci.bento_ri.service.HedgedRequests;
+import gov.nih.nci.bento_ri.service.InFlightRequests;
+import gov.nih.nci.bento_ri.service.PayloadStats;
+import gov.nih.nci.bento_ri.service.QueryTiming;
+import gov.nih.nci.bento_ri.service.RestClientFactory;
+import gov.nih.nci.bento_ri.service.ResultCache;
+import gov.nih.nci.bento_ri.service.StaleResults;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Elasticsearch metrics in the manner of an actuator endpoint: the per index and query metrics of EsMetrics
+// next to the state of the endpoints, connection pools, limiters, caches and circuit breaker, and the timing
+// of the GraphQL requests and fields. The endpoint has no authentication and shows internal urls, so it is
+// served only when es.metrics.endpoint.enabled is on, and es.metrics.enabled too since it has nothing to show
+// otherwise; recording the metrics alone doesn't expose them.
+@RestController
+public class EsMetricsController {
+    public static final String PATH = "/metrics/elasticsearch";
+
+    private final boolean endpointEnabled;
+    private final EsMetrics esMetrics;
+    private final EndpointRouter endpointRouter;
+    private final RestClientFactory clientFactory;
+    private final Bulkheads bulkheads;
+    private final HedgedRequests hedgedRequests;
+    private final CircuitBreaker circuitBreaker;
+    private final InFlightRequests inFlightRequests;
+    private final ResultCache resultCache;
+    private final StaleResults staleResults;
+    private final PayloadStats payloadStats;
+    private final QueryTiming queryTiming;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public EsMetricsController(EsMetrics esMetrics, EndpointRouter endpointRouter, RestClientFactory clientFactory,
+                               Bulkheads bulkheads, HedgedRequests hedgedRequests, CircuitBreaker circuitBreaker,
+                               InFlightRequests inFlightRequests, ResultCache resultCache, StaleResults staleResults,
+                               PayloadStats payloadStats, QueryTiming queryTiming,
+                               @Value("${es.metrics.endpoint.enabled:false}") boolean endpointEnabled) {
+        this.endpointEnabled = endpointEnabled;
+        this.esMetrics = esMetrics;
+        this.endpointRouter = endpointRouter;
+        this.clientFactory = clientFactory;
+        this.bulkheads = bulkheads;
+        this.hedgedRequests = hedgedRequests;
+        this.circuitBreaker = circuitBreaker;
+        this.inFlightRequests = inFlightRequests;
+        this.resultCache = resultCache;
+        this.staleResults = staleResults;
+        this.payloadStats = payloadStats;
+        this.queryTiming = queryTiming;
+    }
+
+    @GetMapping(value = PATH, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> metrics() {
+        if (!endpointEnabled || !esMetrics.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("queries", esMetrics.snapshot());
+        body.put("endpoints", endpointRouter.stats());
+        body.put("connection_pool", clientFactory.poolStats());
+        body.put("bulkheads", bulkheads.stats());
+        body.put("in_flight_requests", inFlightRequests.stats());
+        body.put("hedged_requests", hedgedRequests.stats());
+        body.put("circuit_breaker", circuitBreaker.stats());
+        body.put("result_cache", resultCache.stats());
+        body.put("stale_results", staleResults.stats());
+        body.put("payload", payloadStats.snapshot());
+        if (queryTiming.isEnabled()) {
+            body.put("graphql", queryTiming.snapshot());
+        }
+        return ResponseEntity.ok(gson.toJson(body));
+    }
+}
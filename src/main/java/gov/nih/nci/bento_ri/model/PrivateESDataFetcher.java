@@ -1,16 +1,33 @@
 package gov.nih.nci.bento_ri.model;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import gov.nih.nci.bento.constants.Const;
 import gov.nih.nci.bento.model.AbstractPrivateESDataFetcher;
 import gov.nih.nci.bento.model.search.mapper.TypeMapperImpl;
 import gov.nih.nci.bento.model.search.mapper.TypeMapperService;
 import gov.nih.nci.bento.model.search.yaml.YamlQueryFactory;
 import gov.nih.nci.bento.service.ESService;
+import gov.nih.nci.bento_ri.service.CircuitBreaker;
+import gov.nih.nci.bento_ri.service.Deadline;
+import gov.nih.nci.bento_ri.service.FacetAggregationQuery;
+import gov.nih.nci.bento_ri.service.FanOutExecutor;
+import gov.nih.nci.bento_ri.service.HomeStats;
+import gov.nih.nci.bento_ri.service.HomeStatsSnapshot;
 import gov.nih.nci.bento_ri.service.InsESService;
+import gov.nih.nci.bento_ri.service.MultiSearchRequest;
+import gov.nih.nci.bento_ri.service.PitPage;
+import gov.nih.nci.bento_ri.service.PitSessionRegistry;
+import gov.nih.nci.bento_ri.service.QueryTiming;
+import gov.nih.nci.bento_ri.service.ResultCache;
+import gov.nih.nci.bento_ri.service.StaleResults;
+import graphql.execution.DataFetcherResult;
+import graphql.schema.DataFetchingEnvironment;
 import graphql.schema.idl.RuntimeWiring;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opensearch.client.Request;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.google.gson.JsonArray;
@@ -19,7 +36,10 @@ import com.google.gson.JsonObject;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import static gov.nih.nci.bento_ri.service.InsESService.unchecked;
 import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
 
 @Component
@@ -27,19 +47,35 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
     private static final Logger logger = LogManager.getLogger(PrivateESDataFetcher.class);
     private final YamlQueryFactory yamlQueryFactory;
     private InsESService insEsService;
+    private HomeStatsSnapshot homeStatsSnapshot;
+    private PitSessionRegistry pitSessionRegistry;
+    private ResultCache resultCache;
+    private FanOutExecutor fanOutExecutor;
+    private StaleResults staleResults;
+    private CircuitBreaker circuitBreaker;
+    private QueryTiming queryTiming;
+    // Program ids matching the filters of programsOverview, by programs index version and generateCacheKey of the filters
+    private final Cache<String, List<String>> programIdsCache;
+    private final boolean programsOverviewTwoPhase;
 
     // parameters used in queries
     final String PAGE_SIZE = "first";
     final String OFFSET = "offset";
     final String ORDER_BY = "order_by";
     final String SORT_DIRECTION = "sort_direction";
+    final String PAGING_SESSION = "paging_session";
+    final String CURSOR = "cursor";
+    // Response extension holding the paging session cursor of each overview field, by result key
+    final String PAGING_SESSIONS = "paging_sessions";
+    // Response extension listing the fields served from their last good result while Elasticsearch is
+    // unavailable, with the age of that result in ms, by result key
+    final String STALE_RESULTS = "stale_results";
 
     final String GRANTS_END_POINT = "/grants/_search";
     final String PROGRAMS_END_POINT = "/programs/_search";
     final String PROJECTS_END_POINT = "/projects/_search";
     final String FACETED_PROJECTS_END_POINT = "/faceted_projects/_search";
     final String PUBLICATIONS_END_POINT = "/publications/_search";
-    final String HOME_STATS_END_POINT = "/home_stats/_search";
 
     final String GRANTS_COUNT_END_POINT = "/grants/_count";
     final String PROGRAMS_COUNT_END_POINT = "/programs/_count";
@@ -62,69 +98,89 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         "focus_area"
     );
 
+    // Parameters of the overview queries that aren't filters
+    final Set<String> PAGING_PARAMS = Set.of(PAGE_SIZE, OFFSET, ORDER_BY, SORT_DIRECTION, PAGING_SESSION, CURSOR);
+
     final Set<String> REGULAR_PARAMS = Set.of(
         // Programs
         "focus_area"
     );
 
-    public PrivateESDataFetcher(InsESService esService) {
+    public PrivateESDataFetcher(InsESService esService, HomeStatsSnapshot homeStatsSnapshot, PitSessionRegistry pitSessionRegistry,
+                                ResultCache resultCache, FanOutExecutor fanOutExecutor, StaleResults staleResults, CircuitBreaker circuitBreaker,
+                                QueryTiming queryTiming,
+                                @Value("${es.programs_overview.two_phase:false}") boolean programsOverviewTwoPhase,
+                                @Value("${es.programs_overview.id_cache_ttl_ms:3600000}") long programIdsCacheTtlMs) {
         super(esService);
         insEsService = esService;
+        this.homeStatsSnapshot = homeStatsSnapshot;
+        this.pitSessionRegistry = pitSessionRegistry;
+        this.resultCache = resultCache;
+        this.fanOutExecutor = fanOutExecutor;
+        this.staleResults = staleResults;
+        this.circuitBreaker = circuitBreaker;
+        this.queryTiming = queryTiming;
+        this.programsOverviewTwoPhase = programsOverviewTwoPhase;
+        this.programIdsCache = Caffeine.newBuilder()
+                .maximumSize(1000)
+                .expireAfterWrite(programIdsCacheTtlMs, TimeUnit.MILLISECONDS)
+                .build();
         yamlQueryFactory = new YamlQueryFactory(esService);
     }
 
+    // Fetchers that query Elasticsearch return futures: graphql-java resolves the other fields meanwhile
+    // and no thread is held while a query is in flight. Their queries share the deadline of the GraphQL request.
+    // All fetchers are timed by QueryTiming.
     @Override
     public RuntimeWiring buildRuntimeWiring() throws IOException {
         return RuntimeWiring.newRuntimeWiring()
                 .type(newTypeWiring("QueryType")
                         .dataFetchers(yamlQueryFactory.createYamlQueries(Const.ES_ACCESS_TYPE.PRIVATE))
-                        .dataFetcher("idsLists", env -> idsLists())
+                        .dataFetcher("idsLists", env -> {
+                            Deadline deadline = insEsService.deadline(env.getGraphQlContext());
+                            return resultCache.getAsync("idsLists", "all", () -> idsLists(deadline));
+                        })
                         .dataFetcher("searchProjects", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return searchProjects(args);
+                            Deadline deadline = insEsService.deadline(env.getGraphQlContext());
+                            String key = generateCacheKey(args);
+                            return staleResults.withFallback("searchProjects", key, resultCache.getAsync("searchProjects", key, () -> searchProjects(args, deadline)))
+                                    .thenApply(result -> fieldResult(env, result.value(), result.staleMs(), new HashMap<>()));
                         })
                         .dataFetcher("grantsOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return grantsOverview(args);
+                            Deadline deadline = insEsService.deadline(env.getGraphQlContext());
+                            return cachedOverview("grantsOverview", args, () -> grantsOverview(args, deadline)).thenApply(result -> pagingResult(env, result));
                         })
                         .dataFetcher("programsOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return programsOverview(args);
+                            Deadline deadline = insEsService.deadline(env.getGraphQlContext());
+                            return cachedOverview("programsOverview", args, () -> programsOverview(args, deadline)).thenApply(result -> pagingResult(env, result));
                         })
                         .dataFetcher("projectsOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return projectsOverview(args);
+                            Deadline deadline = insEsService.deadline(env.getGraphQlContext());
+                            return cachedOverview("projectsOverview", args, () -> projectsOverview(args, deadline)).thenApply(result -> pagingResult(env, result));
                         })
                         .dataFetcher("publicationsOverview", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return publicationsOverview(args);
-                        })
-                        .dataFetcher("numberOfGrants", env -> {
-                            return numberOfGrants();
-                        })
-                        .dataFetcher("numberOfPrograms", env -> {
-                            return numberOfPrograms();
-                        })
-                        .dataFetcher("numberOfProjects", env -> {
-                            return numberOfProjects();
-                        })
-                        .dataFetcher("numberOfPublications", env -> {
-                            return numberOfPublications();
+                            Deadline deadline = insEsService.deadline(env.getGraphQlContext());
+                            return cachedOverview("publicationsOverview", args, () -> publicationsOverview(args, deadline)).thenApply(result -> pagingResult(env, result));
                         })
+                        .dataFetcher("numberOfGrants", env -> homeStat(env, HomeStats::numGrants))
+                        .dataFetcher("numberOfPrograms", env -> homeStat(env, HomeStats::numPrograms))
+                        .dataFetcher("numberOfProjects", env -> homeStat(env, HomeStats::numProjects))
+                        .dataFetcher("numberOfPublications", env -> homeStat(env, HomeStats::numPublications))
                         .dataFetcher("findProgramIdsInList", env -> {
                             Map<String, Object> args = env.getArguments();
-                            return findProgramIdsInList(args);
+                            return findProgramIdsInList(args, insEsService.deadline(env.getGraphQlContext()));
                         })
                 )
+                .directiveWiring(queryTiming.fieldWiring())
                 .build();
     }
 
-    private List<Map<String, Object>> subjectCountBy(String category, Map<String, Object> params, String endpoint, String cardinalityAggName, String indexType) throws IOException {
-        return subjectCountBy(category, params, endpoint, Map.of(), cardinalityAggName, indexType);
-    }
-
-    private List<Map<String, Object>> subjectCountBy(String category, Map<String, Object> params, String endpoint, Map<String, Object> additionalParams, String cardinalityAggName, String indexType) throws IOException {
-        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE), REGULAR_PARAMS, "nested_filters", indexType);
+    private String subjectCountBy(FacetAggregationQuery facetQuery, String aggName, String category, Map<String, Object> params, String cardinalityAggName) {
         List<String> only_includes;
         List<String> valueSet = INCLUDE_PARAMS.contains(category) ? (List<String>)params.get(category) : List.of();
         if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))){
@@ -132,31 +188,23 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         } else {
             only_includes = List.of();
         }
-        return getGroupCount(category, query, endpoint, cardinalityAggName, only_includes);
-    }
-
-    private List<Map<String, Object>> subjectCountByRange(String category, Map<String, Object> params, String endpoint, String cardinalityAggName, String indexType) throws IOException {
-        return subjectCountByRange(category, params, endpoint, Map.of(), cardinalityAggName, indexType);
+        return getGroupCount(facetQuery, aggName, category, null, cardinalityAggName, only_includes);
     }
 
-    private List<Map<String, Object>> subjectCountByRange(String category, Map<String, Object> params, String endpoint, Map<String, Object> additionalParams, String cardinalityAggName, String indexType) throws IOException {
-        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE), REGULAR_PARAMS, "nested_filters", indexType);
-        return getGroupCountByRange(category, query, endpoint, cardinalityAggName);
+    private String subjectCountByRange(FacetAggregationQuery facetQuery, String aggName, String category, String cardinalityAggName) {
+        Map<String, Object> aggQuery = insEsService.addRangeCountAggregations(new HashMap<>(), category, cardinalityAggName);
+        return facetQuery.addAggregations(aggName, aggQuery, null);
     }
 
-    private List<Map<String, Object>> filterSubjectCountBy(String category, Map<String, Object> params, String endpoint, String cardinalityAggName, String indexType) throws IOException {
-        return filterSubjectCountBy(category, params, endpoint, Map.of(), cardinalityAggName, indexType);
-    }
-
-    private List<Map<String, Object>> filterSubjectCountBy(String category, Map<String, Object> params, String endpoint, Map<String, Object> additionalParams, String cardinalityAggName, String indexType) throws IOException {
-        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE, category), REGULAR_PARAMS, "nested_filters", indexType);
-        return getGroupCount(category, query, endpoint, cardinalityAggName, List.of());
+    // Facet counts ignore the filter on the facet itself
+    private String filterSubjectCountBy(FacetAggregationQuery facetQuery, String aggName, String category, String cardinalityAggName) {
+        return getGroupCount(facetQuery, aggName, category, category, cardinalityAggName, List.of());
     }
 
     private JsonArray getNodeCount(String category, Map<String, Object> query, String endpoint) throws IOException {
         query = insEsService.addNodeCountAggregations(query, category);
         Request request = new Request("GET", endpoint);
-        request.setJsonEntity(gson.toJson(query));
+        insEsService.setSearchBody(request, query);
         JsonObject jsonObject = insEsService.send(request);
         Map<String, JsonArray> aggs = insEsService.collectNodeCountAggs(jsonObject, category);
         JsonArray buckets = aggs.get(category);
@@ -164,41 +212,38 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         return buckets;
     }
 
-    private List<Map<String, Object>> getGroupCountByRange(String category, Map<String, Object> query, String endpoint, String cardinalityAggName) throws IOException {
-        query = insEsService.addRangeCountAggregations(query, category, cardinalityAggName);
-        Request request = new Request("GET", endpoint);
-        request.setJsonEntity(gson.toJson(query));
-        JsonObject jsonObject = insEsService.send(request);
-        Map<String, JsonArray> aggs = insEsService.collectRangCountAggs(jsonObject, category);
+    private String getGroupCount(FacetAggregationQuery facetQuery, String aggName, String category, String excludedParam, String cardinalityAggName, List<String> only_includes) {
+        Map<String, Object> aggQuery;
+        if (RANGE_PARAMS.contains(category)) {
+            aggQuery = insEsService.addRangeAggregations(new HashMap<>(), category, only_includes);
+        } else {
+            aggQuery = insEsService.addAggregations(new HashMap<>(), new String[] {category}, cardinalityAggName, only_includes);
+        }
+        return facetQuery.addAggregations(aggName, aggQuery, excludedParam);
+    }
+
+    private List<Map<String, Object>> collectGroupCountByRange(JsonObject jsonObject, String aggName, String category, String cardinalityAggName) throws IOException {
+        JsonObject scoped = FacetAggregationQuery.getScopedResponse(jsonObject, aggName);
+        Map<String, JsonArray> aggs = insEsService.collectRangCountAggs(scoped, category);
         JsonArray buckets = aggs.get(category);
 
         return getGroupCountHelper(buckets, cardinalityAggName);
     }
 
-    private List<Map<String, Object>> getGroupCount(String category, Map<String, Object> query, String endpoint, String cardinalityAggName, List<String> only_includes) throws IOException {
+    private List<Map<String, Object>> collectGroupCount(JsonObject jsonObject, String aggName, String category, String cardinalityAggName) throws IOException {
+        JsonObject scoped = FacetAggregationQuery.getScopedResponse(jsonObject, aggName);
         if (RANGE_PARAMS.contains(category)) {
-            query = insEsService.addRangeAggregations(query, category, only_includes);
-            Request request = new Request("GET", endpoint);
-            String jsonizedRequest = gson.toJson(query);
-            request.setJsonEntity(jsonizedRequest);
-            JsonObject jsonObject = insEsService.send(request);
-            Map<String, JsonObject> aggs = insEsService.collectRangAggs(jsonObject, category);
+            Map<String, JsonObject> aggs = insEsService.collectRangAggs(scoped, category);
             JsonObject ranges = aggs.get(category);
 
             return getRangeGroupCountHelper(ranges);
         } else {
             String[] AGG_NAMES = new String[] {category};
-            query = insEsService.addAggregations(query, AGG_NAMES, cardinalityAggName, only_includes);
-            String queryJson = gson.toJson(query);
-            Request request = new Request("GET", endpoint);
-            request.setJsonEntity(queryJson);
-            JsonObject jsonObject = insEsService.send(request);
-            Map<String, JsonArray> aggs = insEsService.collectTermAggs(jsonObject, AGG_NAMES);
+            Map<String, JsonArray> aggs = insEsService.collectTermAggs(scoped, AGG_NAMES);
             JsonArray buckets = aggs.get(category);
 
             return getGroupCountHelper(buckets, cardinalityAggName);
         }
-        
     }
 
     private List<Map<String, Object>> getRangeGroupCountHelper(JsonObject ranges) throws IOException {
@@ -241,7 +286,7 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         return data;
     }
 
-    private List<Map<String, Object>> idsLists() throws IOException {
+    private CompletableFuture<List<Map<String, Object>>> idsLists(Deadline deadline) throws IOException {
         Map<String, String[][]> indexProperties = Map.of(
             PROGRAMS_END_POINT, new String[][]{
                 new String[]{"program_id", "program_id"},
@@ -251,8 +296,8 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         );
         //Generic Query
         Map<String, Object> query = esService.buildListQuery();
-        //Results Map
-        List<Map<String, Object>> results = new ArrayList<>();
+        //Pages of each endpoint, requested concurrently
+        List<CompletableFuture<List<Map<String, Object>>>> pages = new ArrayList<>();
         //Iterate through each index properties map and make a request to each endpoint then format the results as
         // String arrays
         for (String endpoint: indexProperties.keySet()){
@@ -262,17 +307,22 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             for (String[] prop: properties) {
                 fields.add(prop[1]);
             }
-            query.put("_source", fields);
+            Map<String, Object> endpointQuery = new HashMap<>(query);
+            endpointQuery.put("_source", fields);
             
-            List<Map<String, Object>> result = esService.collectPage(request, query, properties, ESService.MAX_ES_SIZE,0);
-            results.addAll(result);
+            pages.add(insEsService.collectPageAsync(request, endpointQuery, properties, ESService.MAX_ES_SIZE, 0, InsESService.DEFAULT_TIEBREAKER, deadline));
         }
 
-        return results;
+        return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (var page: pages) {
+                results.addAll(page.join());
+            }
+            return results;
+        });
     }
 
-    private Map<String, Object> searchProjects(Map<String, Object> params) throws IOException {
-        Map<String, Object> data = new HashMap<>();
+    private CompletableFuture<Map<String, Object>> searchProjects(Map<String, Object> params, Deadline deadline) throws IOException {
 
         final String CARDINALITY_AGG_NAME = "cardinality_agg_name";
         final String AGG_NAME = "agg_name";
@@ -303,78 +353,98 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             AGG_ENDPOINT, FACETED_PROJECTS_END_POINT
         ));
 
-        // Get Grant counts for Explore page stats bar
-        Map<String, Object> grantsQuery = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), REGULAR_PARAMS, "nested_filters", "grants");
-        String grantsQueryJson = gson.toJson(grantsQuery);
-        Request grantsCountRequest = new Request("GET", GRANTS_COUNT_END_POINT);
-        grantsCountRequest.setJsonEntity(grantsQueryJson);
-        JsonObject grantsCountResult = insEsService.send(grantsCountRequest);
-        int numberOfGrants = grantsCountResult.get("count").getAsInt();
-
-        // Get Program counts for Explore page stats bar
-        Map<String, Object> programsQuery = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), REGULAR_PARAMS, "nested_filters", "programs");
-        String programsQueryJson = gson.toJson(programsQuery);
-        Request programsCountRequest = new Request("GET", PROGRAMS_COUNT_END_POINT);
-        programsCountRequest.setJsonEntity(programsQueryJson);
-        JsonObject programsCountResult = insEsService.send(programsCountRequest);
-        int numberOfPrograms = programsCountResult.get("count").getAsInt();
-
-        // Get Project counts for Explore page stats bar
-        Map<String, Object> projectsQuery = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), REGULAR_PARAMS, "nested_filters", "projects");
-        String projectsQueryJson = gson.toJson(projectsQuery);
-        Request projectsCountRequest = new Request("GET", PROJECTS_COUNT_END_POINT);
-        projectsCountRequest.setJsonEntity(projectsQueryJson);
-        JsonObject projectsCountResult = insEsService.send(projectsCountRequest);
-        int numberOfProjects = projectsCountResult.get("count").getAsInt();
-        
-        // Get Publication counts for Explore page stats bar
-        Map<String, Object> publicationsQuery = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(), REGULAR_PARAMS, "nested_filters", "publications");
-        String publicationsQueryJson = gson.toJson(publicationsQuery);
-        Request publicationsCountRequest = new Request("GET", PUBLICATIONS_COUNT_END_POINT);
-        publicationsCountRequest.setJsonEntity(publicationsQueryJson);
-        JsonObject publicationsCountResult = insEsService.send(publicationsCountRequest);
-        int numberOfPublications = publicationsCountResult.get("count").getAsInt();
-
-        data.put("numberOfGrants", numberOfGrants);
-        data.put("numberOfPrograms", numberOfPrograms);
-        data.put("numberOfProjects", numberOfProjects);
-        data.put("numberOfPublications", numberOfPublications);
-        
+        // One aggregation request per index: the stats bar count and every facet and widget of that index
+        // are filter aggregations evaluated in the same shard pass, all requests go out in one _msearch
+        final String COUNT_AGG = "count";
+        final List<String> INDICES = List.of("grants", "programs", "projects", "publications", "faceted_projects");
+        Map<String, FacetAggregationQuery> facetQueries = new LinkedHashMap<>();
+        for (String indexType: INDICES) {
+            FacetAggregationQuery facetQuery = insEsService.buildFacetAggregationQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE), indexType);
+            facetQuery.addCount(COUNT_AGG);
+            facetQueries.put(indexType, facetQuery);
+        }
+
         // widgets data and facet filter counts for projects
-        for (var agg: PROJECT_TERM_AGGS) {
+        for (int i = 0; i < PROJECT_TERM_AGGS.size(); i++) {
+            var agg = PROJECT_TERM_AGGS.get(i);
             String field = agg.get(AGG_NAME);
-            String widgetQueryName = agg.get(WIDGET_QUERY);
-            String filterCountQueryName = agg.get(FILTER_COUNT_QUERY);
             String endpoint = agg.get(AGG_ENDPOINT);
-            String indexType = endpoint.replace("/", "").replace("_search", "");
+            FacetAggregationQuery facetQuery = facetQueries.get(endpoint.replace("/", "").replace("_search", ""));
             String cardinalityAggName = agg.get(CARDINALITY_AGG_NAME);
-            List<Map<String, Object>> filterCount = filterSubjectCountBy(field, params, endpoint, cardinalityAggName, indexType);
-            if(RANGE_PARAMS.contains(field)) {
-                data.put(filterCountQueryName, filterCount.get(0));
-            } else {
-                data.put(filterCountQueryName, filterCount);
+
+            if (agg.get(FILTER_COUNT_QUERY) != null || !widgetNeedsOwnQuery(field, params)) {
+                filterSubjectCountBy(facetQuery, FILTER_COUNT_QUERY + i, field, cardinalityAggName);
             }
-            
-            if (widgetQueryName != null) {
+            if (agg.get(WIDGET_QUERY) != null && widgetNeedsOwnQuery(field, params)) {
                 if (RANGE_PARAMS.contains(field)) {
-                    List<Map<String, Object>> subjectCount = subjectCountByRange(field, params, endpoint, cardinalityAggName, indexType);
-                    data.put(widgetQueryName, subjectCount);
+                    subjectCountByRange(facetQuery, WIDGET_QUERY + i, field, cardinalityAggName);
                 } else {
-                    if (params.containsKey(field) && ((List<String>)params.get(field)).size() > 0) {
-                        List<Map<String, Object>> subjectCount = subjectCountBy(field, params, endpoint, cardinalityAggName, indexType);
-                        data.put(widgetQueryName, subjectCount);
+                    subjectCountBy(facetQuery, WIDGET_QUERY + i, field, params, cardinalityAggName);
+                }
+            }
+        }
+
+        MultiSearchRequest multiSearch = new MultiSearchRequest();
+        Map<String, MultiSearchRequest.Key<JsonObject>> responseKeys = new HashMap<>();
+        for (var facetQuery: facetQueries.entrySet()) {
+            String indexType = facetQuery.getKey();
+            responseKeys.put(indexType, multiSearch.add(indexType, indexType, facetQuery.getValue(), jsonObject -> jsonObject));
+        }
+        return insEsService.multiSearchAsync(multiSearch, deadline).thenApply(unchecked(results -> {
+            Map<String, Object> data = new HashMap<>();
+            Map<String, JsonObject> responses = new HashMap<>();
+            for (String indexType: INDICES) {
+                responses.put(indexType, results.get(responseKeys.get(indexType)));
+            }
+
+            // Get Grant, Program, Project and Publication counts for Explore page stats bar
+            data.put("numberOfGrants", FacetAggregationQuery.getDocCount(responses.get("grants"), COUNT_AGG));
+            data.put("numberOfPrograms", FacetAggregationQuery.getDocCount(responses.get("programs"), COUNT_AGG));
+            data.put("numberOfProjects", FacetAggregationQuery.getDocCount(responses.get("projects"), COUNT_AGG));
+            data.put("numberOfPublications", FacetAggregationQuery.getDocCount(responses.get("publications"), COUNT_AGG));
+
+            for (int i = 0; i < PROJECT_TERM_AGGS.size(); i++) {
+                var agg = PROJECT_TERM_AGGS.get(i);
+                String field = agg.get(AGG_NAME);
+                String widgetQueryName = agg.get(WIDGET_QUERY);
+                String filterCountQueryName = agg.get(FILTER_COUNT_QUERY);
+                String endpoint = agg.get(AGG_ENDPOINT);
+                JsonObject response = responses.get(endpoint.replace("/", "").replace("_search", ""));
+                String cardinalityAggName = agg.get(CARDINALITY_AGG_NAME);
+                List<Map<String, Object>> filterCount = null;
+                if (filterCountQueryName != null || !widgetNeedsOwnQuery(field, params)) {
+                    filterCount = collectGroupCount(response, FILTER_COUNT_QUERY + i, field, cardinalityAggName);
+                }
+
+                if (filterCountQueryName != null) {
+                    if (RANGE_PARAMS.contains(field)) {
+                        data.put(filterCountQueryName, filterCount.get(0));
                     } else {
+                        data.put(filterCountQueryName, filterCount);
+                    }
+                }
+
+                if (widgetQueryName != null) {
+                    if (!widgetNeedsOwnQuery(field, params)) {
                         data.put(widgetQueryName, filterCount);
+                    } else if (RANGE_PARAMS.contains(field)) {
+                        data.put(widgetQueryName, collectGroupCountByRange(response, WIDGET_QUERY + i, field, cardinalityAggName));
+                    } else {
+                        data.put(widgetQueryName, collectGroupCount(response, WIDGET_QUERY + i, field, cardinalityAggName));
                     }
                 }
-                
             }
-        }
 
-        return data;
+            return data;
+        }));
+    }
+
+    // Range widgets and widgets of a field that is being filtered on can't reuse the facet filter count
+    private boolean widgetNeedsOwnQuery(String field, Map<String, Object> params) {
+        return RANGE_PARAMS.contains(field) || (params.containsKey(field) && ((List<String>)params.get(field)).size() > 0);
     }
 
-    private List<Map<String, Object>> grantsOverview(Map<String, Object> params) throws IOException {
+    private CompletableFuture<PitPage> grantsOverview(Map<String, Object> params, Deadline deadline) throws IOException {
         final String[][] PROPERTIES = new String[][]{
             // Grants
             new String[]{"fiscal_year", "fiscal_year"},
@@ -432,10 +502,10 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         // grant_params.put(PAGE_SIZE, pageSize);
         // grant_params.put(OFFSET, offset);
 
-        return overview(GRANTS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "grants");
+        return overview(GRANTS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "grants", "grant_id.sort", deadline);
     }
 
-    private List<Map<String, Object>> programsOverview(Map<String, Object> params) throws IOException {
+    private CompletableFuture<PitPage> programsOverview(Map<String, Object> params, Deadline deadline) throws IOException {
         final String[][] PROPERTIES = new String[][]{
             // Programs
             new String[]{"data_link", "data_link"},
@@ -460,20 +530,28 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             Map.entry("program_name", "program_name.sort")
         );
         
-        Request request = new Request("GET", PROGRAMS_END_POINT);
-        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE, OFFSET, ORDER_BY, SORT_DIRECTION), REGULAR_PARAMS, "nested_filters", "programs");
-        String[] AGG_NAMES = new String[] {"program_id"};
-        query = insEsService.addAggregations(query, AGG_NAMES);
-        String queryJson = gson.toJson(query);
-        request.setJsonEntity(queryJson);
-        JsonObject jsonObject = insEsService.send(request);
-        Map<String, JsonArray> aggs = insEsService.collectTermAggs(jsonObject, AGG_NAMES);
-        JsonArray buckets = aggs.get("program_id");
-        List<String> data = new ArrayList<>();
-        for (var bucket: buckets) {
-            data.add(bucket.getAsJsonObject().get("key").getAsString());
+        // The programs index holds one document per program, so the filters can select and page the
+        // documents directly instead of collecting the matching program ids first
+        if (!programsOverviewTwoPhase) {
+            return overview(PROGRAMS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "programs", "program_id.sort", deadline);
         }
 
+        Map<String, Object> filter_params = new HashMap<>(params);
+        filter_params.keySet().removeAll(PAGING_PARAMS);
+        String cacheKey = insEsService.getIndexGenerations().version("programs") + ":" + generateCacheKey(filter_params);
+        List<String> cachedIds = programIdsCache.getIfPresent(cacheKey);
+        CompletableFuture<List<String>> programIds = cachedIds != null ? CompletableFuture.completedFuture(cachedIds) :
+                collectProgramIds(params, deadline).thenApply(ids -> {
+                    programIdsCache.put(cacheKey, ids);
+                    return ids;
+                });
+        return programIds.thenCompose(unchecked(ids -> programsPage(ids, params, PROPERTIES, defaultSort, mapping, deadline)));
+    }
+
+    // Second phase of programsOverview: the page of the programs with the ids found in the first phase
+    private CompletableFuture<PitPage> programsPage(List<String> programIds, Map<String, Object> params, String[][] properties, String defaultSort, Map<String, String> mapping, Deadline deadline) throws IOException {
+        List<String> data = new ArrayList<>(programIds);
+
         String order_by = (String)params.get(ORDER_BY);
         String direction = ((String)params.get(SORT_DIRECTION));
         int pageSize = (int) params.get(PAGE_SIZE);
@@ -488,11 +566,30 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         program_params.put(SORT_DIRECTION, direction);
         program_params.put(PAGE_SIZE, pageSize);
         program_params.put(OFFSET, offset);
+        program_params.put(PAGING_SESSION, params.get(PAGING_SESSION));
+        program_params.put(CURSOR, params.get(CURSOR));
+
+        return overview(PROGRAMS_END_POINT, program_params, properties, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "programs", "program_id.sort", deadline);
+    }
 
-        return overview(PROGRAMS_END_POINT, program_params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "programs");
+    private CompletableFuture<List<String>> collectProgramIds(Map<String, Object> params, Deadline deadline) throws IOException {
+        Request request = new Request("GET", PROGRAMS_END_POINT);
+        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, PAGING_PARAMS, REGULAR_PARAMS, "nested_filters", "programs");
+        String[] AGG_NAMES = new String[] {"program_id"};
+        query = insEsService.addAggregations(query, AGG_NAMES);
+        insEsService.setSearchBody(request, query);
+        return insEsService.sendForAggregationsAsync(request, deadline, AGG_NAMES).thenApply(jsonObject -> {
+            Map<String, JsonArray> aggs = insEsService.collectTermAggs(jsonObject, AGG_NAMES);
+            JsonArray buckets = aggs.get("program_id");
+            List<String> data = new ArrayList<>();
+            for (var bucket: buckets) {
+                data.add(bucket.getAsJsonObject().get("key").getAsString());
+            }
+            return List.copyOf(data);
+        });
     }
 
-    private List<Map<String, Object>> projectsOverview(Map<String, Object> params) throws IOException {
+    private CompletableFuture<PitPage> projectsOverview(Map<String, Object> params, Deadline deadline) throws IOException {
         final String[][] PROPERTIES = new String[][]{
             // Projects
             new String[]{"org_name", "org_name"},
@@ -525,10 +622,10 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             // Stub
         );
 
-        return overview(PROJECTS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "projects");
+        return overview(PROJECTS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "projects", "project_id.sort", deadline);
     }
 
-    private List<Map<String, Object>> publicationsOverview(Map<String, Object> params) throws IOException {
+    private CompletableFuture<PitPage> publicationsOverview(Map<String, Object> params, Deadline deadline) throws IOException {
         final String[][] PROPERTIES = new String[][]{
             // Publications
             new String[]{"authors", "authors"},
@@ -563,24 +660,31 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
             // Stub
         );
 
-        return overview(PUBLICATIONS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "publications");
+        return overview(PUBLICATIONS_END_POINT, params, PROPERTIES, defaultSort, mapping, REGULAR_PARAMS, "nested_filters", "publications", "pmid.sort", deadline);
     }
 
     // if the nestedProperty is set, this will filter based upon the params against the nested property for the endpoint's index.
     // otherwise, this will filter based upon the params against the top level properties for the index
-    private List<Map<String, Object>> overview(String endpoint, Map<String, Object> params, String[][] properties, String defaultSort, Map<String, String> mapping, Set<String> regular_fields, String nestedProperty, String overviewType) throws IOException {
+    // tiebreaker is a unique field of the index, needed to page past 10000 records
+    // deadline bounds the page's searches, pages of a paging session are read without one
+    private CompletableFuture<PitPage> overview(String endpoint, Map<String, Object> params, String[][] properties, String defaultSort, Map<String, String> mapping, Set<String> regular_fields, String nestedProperty, String overviewType, String tiebreaker, Deadline deadline) throws IOException {
         Request request = new Request("GET", endpoint);
-        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, Set.of(PAGE_SIZE, OFFSET, ORDER_BY, SORT_DIRECTION), regular_fields, nestedProperty, overviewType);
+        Map<String, Object> query = insEsService.buildFacetFilterQuery(params, RANGE_PARAMS, PAGING_PARAMS, regular_fields, nestedProperty, overviewType);
         String order_by = (String)params.get(ORDER_BY);
         String direction = ((String)params.get(SORT_DIRECTION)).toLowerCase();
         query.put("sort", mapSortOrder(order_by, direction, defaultSort, mapping));
         int pageSize = (int) params.get(PAGE_SIZE);
         int offset = (int) params.get(OFFSET);
-        List<Map<String, Object>> page = insEsService.collectPage(request, query, properties, pageSize, offset);
-        return page;
+        // Paging sessions read every page of the table from the same point in time of the index. Opening
+        // the point in time and walking to the page are blocking calls, they run on the fan-out pool.
+        if (usesPagingSession(params)) {
+            String cursor = (String) params.get(CURSOR);
+            return fanOutExecutor.supplyAsync(() -> pitSessionRegistry.collectPage(cursor, endpoint, query, properties, pageSize, offset, tiebreaker));
+        }
+        return insEsService.collectPageAsync(request, query, properties, pageSize, offset, tiebreaker, deadline).thenApply(page -> new PitPage(page, null));
     }
 
-    private List<Map<String, Object>> findProgramIdsInList(Map<String, Object> params) throws IOException {
+    private CompletableFuture<List<Map<String, Object>>> findProgramIdsInList(Map<String, Object> params, Deadline deadline) throws IOException {
         final String[][] properties = new String[][]{
                 new String[]{"program_id", "program_id"},
                 new String[]{"program_name", "program_name"}
@@ -589,115 +693,76 @@ public class PrivateESDataFetcher extends AbstractPrivateESDataFetcher {
         Map<String, Object> query = esService.buildListQuery(params, Set.of(), false);
         Request request = new Request("GET", PROGRAMS_END_POINT);
 
-        return esService.collectPage(request, query, properties, ESService.MAX_ES_SIZE, 0);
+        return insEsService.collectPageAsync(request, query, properties, ESService.MAX_ES_SIZE, 0, InsESService.DEFAULT_TIEBREAKER, deadline);
     }
 
-    private Map<String, String> mapSortOrder(String order_by, String direction, String defaultSort, Map<String, String> mapping) {
-        String sortDirection = direction;
-        if (!sortDirection.equalsIgnoreCase("asc") && !sortDirection.equalsIgnoreCase("desc")) {
-            sortDirection = "asc";
-        }
-
-        String sortOrder = defaultSort; // Default sort order
-        if (mapping.containsKey(order_by)) {
-            sortOrder = mapping.get(order_by);
-        } else {
-            logger.info("Order: \"" + order_by + "\" not recognized, use default order");
-        }
-        return Map.of(sortOrder, sortDirection);
+    // The home stats snapshot keeps being served while Elasticsearch is unavailable, flagged as stale then
+    private DataFetcherResult<Integer> homeStat(DataFetchingEnvironment env, InsESService.IOFunction<HomeStats, Integer> stat) throws IOException {
+        HomeStats stats = homeStatsSnapshot.get();
+        long staleMs = circuitBreaker.isClosed() ? -1 : System.currentTimeMillis() - stats.loadedAt();
+        return fieldResult(env, stat.apply(stats), staleMs, new HashMap<>());
     }
 
-    private Integer numberOfGrants() throws Exception {
-        Request homeStatsRequest = new Request("GET", HOME_STATS_END_POINT);
-        JsonObject homeStatsResult = insEsService.send(homeStatsRequest);
-        JsonArray hits = homeStatsResult.getAsJsonObject("hits").getAsJsonArray("hits");
-        Iterator<JsonElement> hitsIter = hits.iterator();
+    private boolean usesPagingSession(Map<String, Object> params) {
+        return Boolean.TRUE.equals(params.get(PAGING_SESSION)) || params.get(CURSOR) != null;
+    }
 
-        if (!hitsIter.hasNext()) {
-            throw new Exception("Error: no results for homepage stats!");
+    // Overview pages are cached unless they belong to a paging session, those are read from its point in time.
+    // A first page falls back to its last good copy while Elasticsearch is unavailable.
+    private CompletableFuture<StaleResults.Result<PitPage>> cachedOverview(String resolver, Map<String, Object> params, ResultCache.AsyncLoader<PitPage> loader) throws IOException {
+        if (usesPagingSession(params)) {
+            return loader.load().thenApply(StaleResults.Result::fresh);
         }
-
-        JsonObject counts = hitsIter.next().getAsJsonObject().getAsJsonObject("_source");
-        int count = counts.get("num_grants").getAsInt();
-
-        return count;
+        Map<String, Object> filter_params = new HashMap<>(params);
+        filter_params.keySet().removeAll(PAGING_PARAMS);
+        String direction = params.get(SORT_DIRECTION) == null ? null : ((String) params.get(SORT_DIRECTION)).toLowerCase();
+        String key = String.join(";", generateCacheKey(filter_params), String.valueOf(params.get(ORDER_BY)), String.valueOf(direction),
+                String.valueOf(params.get(PAGE_SIZE)), String.valueOf(params.get(OFFSET)));
+        CompletableFuture<PitPage> page = resultCache.getAsync(resolver, key, loader);
+        if (!Integer.valueOf(0).equals(params.get(OFFSET))) {
+            return page.thenApply(StaleResults.Result::fresh);
+        }
+        return staleResults.withFallback(resolver, key, page);
     }
 
-    private Integer numberOfPrograms() throws Exception {
-        Request homeStatsRequest = new Request("GET", HOME_STATS_END_POINT);
-        JsonObject homeStatsResult = insEsService.send(homeStatsRequest);
-        JsonArray hits = homeStatsResult.getAsJsonObject("hits").getAsJsonArray("hits");
-        Iterator<JsonElement> hitsIter = hits.iterator();
-
-        if (!hitsIter.hasNext()) {
-            throw new Exception("Error: no results for homepage stats!");
+    private DataFetcherResult<List<Map<String, Object>>> pagingResult(DataFetchingEnvironment env, StaleResults.Result<PitPage> result) {
+        PitPage page = result.value();
+        Map<Object, Object> extensions = new HashMap<>();
+        if (page.cursor() != null) {
+            extensions.put(PAGING_SESSIONS, Map.of(env.getField().getResultKey(), page.cursor()));
         }
-
-        JsonObject counts = hitsIter.next().getAsJsonObject().getAsJsonObject("_source");
-        int count = counts.get("num_programs").getAsInt();
-
-        return count;
+        return fieldResult(env, page.rows(), result.staleMs(), extensions);
     }
 
-    private Integer numberOfProjects() throws Exception {
-        Request homeStatsRequest = new Request("GET", HOME_STATS_END_POINT);
-        JsonObject homeStatsResult = insEsService.send(homeStatsRequest);
-        JsonArray hits = homeStatsResult.getAsJsonObject("hits").getAsJsonArray("hits");
-        Iterator<JsonElement> hitsIter = hits.iterator();
-
-        if (!hitsIter.hasNext()) {
-            throw new Exception("Error: no results for homepage stats!");
+    // staleMs: age of a stale result, -1 for a fresh one
+    private <T> DataFetcherResult<T> fieldResult(DataFetchingEnvironment env, T data, long staleMs, Map<Object, Object> extensions) {
+        DataFetcherResult.Builder<T> result = DataFetcherResult.<T>newResult().data(data);
+        if (staleMs >= 0) {
+            extensions.put(STALE_RESULTS, Map.of(env.getField().getResultKey(), staleMs));
         }
-
-        JsonObject counts = hitsIter.next().getAsJsonObject().getAsJsonObject("_source");
-        int count = counts.get("num_projects").getAsInt();
-
-        return count;
+        if (!extensions.isEmpty()) {
+            result.extensions(extensions);
+        }
+        return result.build();
     }
 
-    private Integer numberOfPublications() throws Exception {
-        Request homeStatsRequest = new Request("GET", HOME_STATS_END_POINT);
-        JsonObject homeStatsResult = insEsService.send(homeStatsRequest);
-        JsonArray hits = homeStatsResult.getAsJsonObject("hits").getAsJsonArray("hits");
-        Iterator<JsonElement> hitsIter = hits.iterator();
-
-        if (!hitsIter.hasNext()) {
-            throw new Exception("Error: no results for homepage stats!");
+    private Map<String, String> mapSortOrder(String order_by, String direction, String defaultSort, Map<String, String> mapping) {
+        String sortDirection = direction;
+        if (!sortDirection.equalsIgnoreCase("asc") && !sortDirection.equalsIgnoreCase("desc")) {
+            sortDirection = "asc";
         }
 
-        JsonObject counts = hitsIter.next().getAsJsonObject().getAsJsonObject("_source");
-        int count = counts.get("num_publications").getAsInt();
-
-        return count;
+        String sortOrder = defaultSort; // Default sort order
+        if (mapping.containsKey(order_by)) {
+            sortOrder = mapping.get(order_by);
+        } else {
+            logger.info("Order: \"" + order_by + "\" not recognized, use default order");
+        }
+        return Map.of(sortOrder, sortDirection);
     }
 
+    // See ResultCache.argumentsKey
     private String generateCacheKey(Map<String, Object> params) throws IOException {
-        List<String> keys = new ArrayList<>();
-        for (String key: params.keySet()) {
-            if (RANGE_PARAMS.contains(key)) {
-                // Range parameters, should contain two doubles, first lower bound, then upper bound
-                // Any other values after those two will be ignored
-                List<Integer> bounds = (List<Integer>) params.get(key);
-                if (bounds.size() >= 2) {
-                    Integer lower = bounds.get(0);
-                    Integer higher = bounds.get(1);
-                    if (lower == null && higher == null) {
-                        throw new IOException("Lower bound and Upper bound can't be both null!");
-                    }
-                    keys.add(key.concat(lower.toString()).concat(higher.toString()));
-                }
-            } else {
-                List<String> valueSet = (List<String>) params.get(key);
-                // list with only one empty string [""] means return all records
-                if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
-                    keys.add(key.concat(valueSet.toString()));
-                }
-            }
-        }
-        if (keys.size() == 0){
-            return "all";
-        } else {
-            return keys.toString();
-        }
+        return ResultCache.argumentsKey(params, RANGE_PARAMS);
     }
 }
@@ -4,13 +4,17 @@ import gov.nih.nci.bento.constants.Const;
 import gov.nih.nci.bento.model.AbstractPublicESDataFetcher;
 import gov.nih.nci.bento.model.search.yaml.YamlQueryFactory;
 import gov.nih.nci.bento_ri.service.InsESService;
+import gov.nih.nci.bento_ri.service.QueryTiming;
+import graphql.schema.DataFetchingEnvironment;
 import graphql.schema.idl.RuntimeWiring;
+import org.opensearch.client.Request;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
 
@@ -18,9 +22,13 @@ import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
 public class PublicESDataFetcher extends AbstractPublicESDataFetcher {
     private static final Logger logger = LogManager.getLogger(PublicESDataFetcher.class);
     private final YamlQueryFactory yamlQueryFactory;
+    private final InsESService insEsService;
+    private final QueryTiming queryTiming;
 
-    public PublicESDataFetcher(InsESService esService) {
+    public PublicESDataFetcher(InsESService esService, QueryTiming queryTiming) {
         super(esService);
+        insEsService = esService;
+        this.queryTiming = queryTiming;
         yamlQueryFactory = new YamlQueryFactory(esService);
     }
 
@@ -30,14 +38,19 @@ public class PublicESDataFetcher extends AbstractPublicESDataFetcher {
                 .type(newTypeWiring("QueryType")
                         .dataFetcher("esVersion", env -> esVersion())
                         .dataFetchers(yamlQueryFactory.createYamlQueries(Const.ES_ACCESS_TYPE.PUBLIC))
-                        .dataFetcher("numberOfPrograms", env -> getNodeCount(PROGRAMS_COUNT_END_POINT))
-                        .dataFetcher("numberOfStudies", env -> getNodeCount(STUDIES_COUNT_END_POINT))
-                        .dataFetcher("numberOfSubjects", env -> getNodeCount(SUBJECTS_COUNT_END_POINT))
-                        .dataFetcher("numberOfSamples", env -> getNodeCount(SAMPLES_COUNT_END_POINT))
-                        .dataFetcher("numberOfLabProcedures", env -> getNodeCount(LAB_PROCEDURE_COUNT_END_POINT))
-                        .dataFetcher("numberOfFiles", env -> getNodeCount(FILES_COUNT_END_POINT))
+                        .dataFetcher("numberOfPrograms", env -> nodeCount(PROGRAMS_COUNT_END_POINT, env))
+                        .dataFetcher("numberOfStudies", env -> nodeCount(STUDIES_COUNT_END_POINT, env))
+                        .dataFetcher("numberOfSubjects", env -> nodeCount(SUBJECTS_COUNT_END_POINT, env))
+                        .dataFetcher("numberOfSamples", env -> nodeCount(SAMPLES_COUNT_END_POINT, env))
+                        .dataFetcher("numberOfLabProcedures", env -> nodeCount(LAB_PROCEDURE_COUNT_END_POINT, env))
+                        .dataFetcher("numberOfFiles", env -> nodeCount(FILES_COUNT_END_POINT, env))
                 )
+                .directiveWiring(queryTiming.fieldWiring())
                 .build();
     }
 
+    // Same count as getNodeCount, but the fetcher returns while the _count request is in flight
+    private CompletableFuture<Integer> nodeCount(String endpoint, DataFetchingEnvironment env) {
+        return insEsService.sendAsync(new Request("GET", endpoint), insEsService.deadline(env.getGraphQlContext())).thenApply(jsonObject -> jsonObject.get("count").getAsInt());
+    }
 }
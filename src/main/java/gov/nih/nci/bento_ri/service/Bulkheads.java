@@ -0,0 +1,60 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Separate concurrency limits for interactive searches (facets, overview pages, counts) and bulk fetches of
+// up to MAX_ES_SIZE documents (idsLists, findProgramIdsInList, search_after steps), so a burst of large
+// fetches can't take the slots the interactive queries need. See ConcurrencyLimiter. Both limits are scaled
+// down while the circuit breaker ramps traffic back up.
+@Component
+public class Bulkheads {
+    // Searches returning at least this many hits go through the bulk limiter
+    static final int BULK_SIZE = InsESService.MAX_ES_SIZE;
+
+    private final boolean enabled;
+    private final ConcurrencyLimiter interactive;
+    private final ConcurrencyLimiter bulk;
+
+    public Bulkheads(@Value("${es.limiter.enabled:true}") boolean enabled,
+                     @Value("${es.limiter.interactive.limit:20}") int interactiveLimit,
+                     @Value("${es.limiter.interactive.max_limit:100}") int interactiveMaxLimit,
+                     @Value("${es.limiter.interactive.queue_size:200}") int interactiveQueueSize,
+                     @Value("${es.limiter.interactive.queue_timeout_ms:2000}") long interactiveQueueTimeoutMs,
+                     @Value("${es.limiter.interactive.latency_ms:2000}") long interactiveLatencyMs,
+                     @Value("${es.limiter.bulk.limit:2}") int bulkLimit,
+                     @Value("${es.limiter.bulk.max_limit:8}") int bulkMaxLimit,
+                     @Value("${es.limiter.bulk.queue_size:20}") int bulkQueueSize,
+                     @Value("${es.limiter.bulk.queue_timeout_ms:10000}") long bulkQueueTimeoutMs,
+                     @Value("${es.limiter.bulk.latency_ms:10000}") long bulkLatencyMs,
+                     CircuitBreaker circuitBreaker) {
+        this.enabled = enabled;
+        interactive = new ConcurrencyLimiter("interactive", interactiveLimit, interactiveMaxLimit, interactiveQueueSize,
+                interactiveQueueTimeoutMs, interactiveLatencyMs, circuitBreaker::rampShare);
+        bulk = new ConcurrencyLimiter("bulk", bulkLimit, bulkMaxLimit, bulkQueueSize, bulkQueueTimeoutMs, bulkLatencyMs,
+                circuitBreaker::rampShare);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ConcurrencyLimiter interactive() {
+        return interactive;
+    }
+
+    // Limiter for a search returning size hits
+    public ConcurrencyLimiter forSize(int size) {
+        return size >= BULK_SIZE ? bulk : interactive;
+    }
+
+    public Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> values = new TreeMap<>();
+        values.put("interactive", interactive.stats());
+        values.put("bulk", bulk.stats());
+        return values;
+    }
+}
@@ -0,0 +1,20 @@
+package gov.nih.nci.bento_ri.service;
+
+// Deterministic JSON for query bodies. Object keys are written in sorted order, Sets (unordered in Java)
+// in the order of their serialized elements and the value lists of "terms" clauses sorted, so logically
+// identical queries serialize to identical bytes and can be served from the shard request cache.
+// All other lists keep their order, it is meaningful for sort, search_after and the like.
+// The JSON is written by QueryWriter, straight to bytes.
+public class CanonicalJson {
+
+    private CanonicalJson() {
+    }
+
+    public static String toJson(Object value) {
+        return new QueryWriter().canonical(value).toString();
+    }
+
+    public static byte[] toBytes(Object value) {
+        return new QueryWriter().canonical(value).toByteArray();
+    }
+}
@@ -0,0 +1,228 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.ResponseException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Circuit breaker in front of Elasticsearch. The outcomes of the last windowSize requests are kept; once
+    at least minCalls were seen and the share of failures (5xx, 429, connection errors, timeouts) or of calls
+    slower than slowCallMs reaches its threshold, the breaker opens: requests fail right away with
+    CircuitOpenException instead of waiting on the cluster, callers serve stale results (StaleResults).
+    After openMs it lets probeCalls requests through (half-open), the breaker closes once they all succeeded
+    and opens again as soon as one fails. Once closed, traffic comes back gradually without rejecting any
+    request: the bulkheads (Bulkheads) scale their concurrency limits by rampShare(), which grows from
+    RAMP_START to 1 over rampMs, requests over the reduced limits wait in their queues.
+ */
+@Component
+public class CircuitBreaker {
+    private static final Logger logger = LogManager.getLogger(CircuitBreaker.class);
+    private static final double RAMP_START = 0.1;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final boolean enabled;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final double slowCallRate;
+    private final long openNanos;
+    private final int probeCalls;
+    private final long rampNanos;
+    // Outcomes of the last requests, in a ring of windowSize
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int calls;
+    private int next;
+    private int failures;
+    private int slowCalls;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private long closedAt;
+    private boolean rampingUp;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long rejected;
+    private long opened;
+
+    // A request let through, its outcome must be reported exactly once
+    public class Call {
+        private final long start = System.nanoTime();
+        private final boolean probe;
+
+        private Call(boolean probe) {
+            this.probe = probe;
+        }
+
+        // error: why the request failed, null if it succeeded
+        public void complete(Throwable error) {
+            record(this, error, System.nanoTime() - start);
+        }
+    }
+
+    public CircuitBreaker(@Value("${es.breaker.enabled:true}") boolean enabled,
+                          @Value("${es.breaker.window_size:100}") int windowSize,
+                          @Value("${es.breaker.min_calls:20}") int minCalls,
+                          @Value("${es.breaker.failure_rate_percent:50}") double failureRatePercent,
+                          @Value("${es.breaker.slow_call_ms:10000}") long slowCallMs,
+                          @Value("${es.breaker.slow_call_rate_percent:80}") double slowCallRatePercent,
+                          @Value("${es.breaker.open_ms:10000}") long openMs,
+                          @Value("${es.breaker.probe_calls:5}") int probeCalls,
+                          @Value("${es.breaker.ramp_ms:30000}") long rampMs) {
+        this.enabled = enabled;
+        this.failed = new boolean[Math.max(1, windowSize)];
+        this.slow = new boolean[failed.length];
+        this.minCalls = Math.min(Math.max(1, minCalls), failed.length);
+        this.failureRate = failureRatePercent / 100;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMs);
+        this.slowCallRate = slowCallRatePercent / 100;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+        this.probeCalls = Math.max(1, probeCalls);
+        this.rampNanos = TimeUnit.MILLISECONDS.toNanos(rampMs);
+    }
+
+    // Throws CircuitOpenException when the request may not be sent
+    public synchronized Call acquire() throws CircuitOpenException {
+        if (!enabled) {
+            return new Call(false);
+        }
+        long now = System.nanoTime();
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+            logger.info("Elasticsearch circuit breaker half-open, sending " + probeCalls + " probe requests");
+        }
+        if (state == State.HALF_OPEN && probesInFlight + probeSuccesses < probeCalls) {
+            probesInFlight++;
+            return new Call(true);
+        }
+        if (state == State.CLOSED) {
+            return new Call(false);
+        }
+        rejected++;
+        throw new CircuitOpenException(state == State.OPEN ? "Elasticsearch circuit breaker is open, request not sent"
+                : "Elasticsearch circuit breaker is half-open and its probe requests are in flight, request not sent");
+    }
+
+    // Share of the usual concurrency Elasticsearch is given: 1, except while ramping up after closing
+    public synchronized double rampShare() {
+        if (!enabled || !rampingUp) {
+            return 1;
+        }
+        long sinceClosed = System.nanoTime() - closedAt;
+        if (sinceClosed >= rampNanos) {
+            rampingUp = false;
+            return 1;
+        }
+        return RAMP_START + (1 - RAMP_START) * sinceClosed / rampNanos;
+    }
+
+    private synchronized void record(Call call, Throwable error, long latencyNanos) {
+        // A cancelled request (e.g. the slower attempt of a hedged one) tells nothing about the cluster
+        boolean ignored = isCancellation(error);
+        boolean failure = !ignored && isFailure(error);
+        if (call.probe) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            probesInFlight--;
+            if (failure) {
+                open("a probe request failed: " + error);
+            } else if (!ignored && ++probeSuccesses >= probeCalls) {
+                close();
+            }
+            return;
+        }
+        if (ignored || state != State.CLOSED) {
+            return;
+        }
+        if (calls == failed.length) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = !failure && latencyNanos > slowCallNanos;
+        failures += failed[next] ? 1 : 0;
+        slowCalls += slow[next] ? 1 : 0;
+        next = (next + 1) % failed.length;
+
+        if (calls >= minCalls) {
+            if (failures >= failureRate * calls) {
+                open(failures + " of the last " + calls + " requests failed");
+            } else if (slowCalls >= slowCallRate * calls) {
+                open(slowCalls + " of the last " + calls + " requests took more than " + TimeUnit.NANOSECONDS.toMillis(slowCallNanos) + "ms");
+            }
+        }
+    }
+
+    private void open(String reason) {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        opened++;
+        logger.warn("Elasticsearch circuit breaker opened, " + reason);
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        closedAt = System.nanoTime();
+        rampingUp = rampNanos > 0;
+        calls = 0;
+        next = 0;
+        failures = 0;
+        slowCalls = 0;
+        logger.info("Elasticsearch circuit breaker closed, ramping traffic back up");
+    }
+
+    // Errors that say the cluster is in trouble, a rejected query (other 4xx) does not
+    static boolean isFailure(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error == null) {
+            return false;
+        }
+        if (error instanceof ResponseException) {
+            int status = ((ResponseException) error).getResponse().getStatusLine().getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return true;
+    }
+
+    static boolean isCancellation(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof CancellationException;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("state", (long) state.ordinal());
+        values.put("calls", (long) calls);
+        values.put("failures", (long) failures);
+        values.put("slow_calls", (long) slowCalls);
+        values.put("rejected", rejected);
+        values.put("opened", opened);
+        values.put("ramp_percent", Math.round(rampShare() * 100));
+        return values;
+    }
+}
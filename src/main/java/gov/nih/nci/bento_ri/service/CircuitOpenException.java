@@ -0,0 +1,10 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.io.IOException;
+
+// A request that wasn't sent because the circuit breaker keeps requests away from Elasticsearch
+public class CircuitOpenException extends IOException {
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,168 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.opensearch.client.ResponseException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/*
+    Limits the number of requests in flight to Elasticsearch, the limit adapts to how the cluster copes (AIMD):
+    a request that completes within latencyMs while the limit was in use raises it by 1/limit, i.e. by one
+    per limit's worth of such requests. A slow request, a 429/503/504 or a socket timeout multiplies it
+    by BACKOFF. Requests over the limit wait in a FIFO queue for at most queueTimeoutMs, when the queue
+    is full they are rejected right away instead of piling up behind an overloaded cluster. The limit in
+    force is the adaptive limit scaled by share (e.g. while the circuit breaker ramps traffic back up).
+ */
+public class ConcurrencyLimiter {
+    private static final double BACKOFF = 0.9;
+    private static final int MIN_LIMIT = 1;
+
+    private final String name;
+    private final int maxLimit;
+    private final int queueSize;
+    private final long queueTimeoutMs;
+    private final long latencyNanos;
+    private final DoubleSupplier share;
+    private final Deque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private long rejected;
+    private long timedOut;
+
+    public class Permit {
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        // error: why the request failed, null if it succeeded
+        public void release(Throwable error) {
+            release(error, true);
+        }
+
+        // For a request that was given up before it got an answer, e.g. the slower attempt of a hedged request
+        public void releaseUnused() {
+            release(null, false);
+        }
+
+        private void release(Throwable error, boolean used) {
+            List<CompletableFuture<Permit>> granted;
+            synchronized (ConcurrencyLimiter.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                inFlight--;
+                // An unused permit sent nothing, so it tells nothing about the cluster
+                if (used) {
+                    if (isOverload(error) || System.nanoTime() - start > latencyNanos) {
+                        limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+                    } else if (error == null && inFlight + 1 >= limit / 2) {
+                        // Only grow while the limit is actually used, an idle limiter keeps its limit
+                        limit = Math.min(maxLimit, limit + 1 / limit);
+                    }
+                }
+                granted = grant();
+            }
+            complete(granted);
+        }
+    }
+
+    ConcurrencyLimiter(String name, int initialLimit, int maxLimit, int queueSize, long queueTimeoutMs, long latencyMs,
+                       DoubleSupplier share) {
+        this.name = name;
+        this.share = share;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(MIN_LIMIT, initialLimit));
+        this.queueSize = queueSize;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    }
+
+    // Completes once the request may be sent, or fails with an IOException when it was rejected or waited too long.
+    // Every permit must be released exactly once.
+    public CompletableFuture<Permit> acquire() {
+        CompletableFuture<Permit> waiter;
+        synchronized (this) {
+            if (waiters.isEmpty() && inFlight < effectiveLimit()) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (waiters.size() >= queueSize) {
+                rejected++;
+                return CompletableFuture.failedFuture(new IOException("Too many concurrent Elasticsearch requests (" + name + "), request rejected"));
+            }
+            waiter = new CompletableFuture<>();
+            waiters.addLast(waiter);
+        }
+        CompletableFuture.delayedExecutor(queueTimeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            // Counted before the waiter fails, so the stats are up to date for whoever sees the failure.
+            // A waiter no longer queued was granted a slot in the meantime.
+            synchronized (this) {
+                if (!waiters.remove(waiter) || waiter.isDone()) {
+                    return;
+                }
+                timedOut++;
+            }
+            waiter.completeExceptionally(new IOException("Waited more than " + queueTimeoutMs + "ms for an Elasticsearch request slot (" + name + ")"));
+        });
+        return waiter;
+    }
+
+    public Permit acquireBlocking() throws IOException {
+        return FanOutExecutor.await(acquire());
+    }
+
+    private int effectiveLimit() {
+        return Math.max(MIN_LIMIT, (int) (limit * Math.min(1, share.getAsDouble())));
+    }
+
+    // Waiters that get a slot, completed by the caller once the lock is released
+    private List<CompletableFuture<Permit>> grant() {
+        List<CompletableFuture<Permit>> granted = new ArrayList<>();
+        int effectiveLimit = effectiveLimit();
+        while (!waiters.isEmpty() && inFlight < effectiveLimit) {
+            CompletableFuture<Permit> waiter = waiters.pollFirst();
+            if (!waiter.isDone()) {
+                inFlight++;
+                granted.add(waiter);
+            }
+        }
+        return granted;
+    }
+
+    private void complete(List<CompletableFuture<Permit>> granted) {
+        for (CompletableFuture<Permit> waiter: granted) {
+            Permit permit = new Permit();
+            // Cancelled in the meantime, hand the slot on
+            if (!waiter.complete(permit)) {
+                permit.release(null, false);
+            }
+        }
+    }
+
+    static boolean isOverload(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof ResponseException) {
+            int status = ((ResponseException) error).getResponse().getStatusLine().getStatusCode();
+            return status == 429 || status == 503 || status == 504;
+        }
+        return error instanceof SocketTimeoutException;
+    }
+
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("limit", (long) limit);
+        values.put("effective_limit", (long) effectiveLimit());
+        values.put("in_flight", (long) inFlight);
+        values.put("queued", (long) waiters.size());
+        values.put("rejected", rejected);
+        values.put("timed_out", timedOut);
+        return values;
+    }
+}
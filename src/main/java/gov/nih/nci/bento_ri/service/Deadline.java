@@ -0,0 +1,28 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.concurrent.TimeUnit;
+
+// Time by which the Elasticsearch requests of one GraphQL request have to be answered. It is kept in the
+// GraphQL context under CONTEXT_KEY, so all fields of a query share one budget, see InsESService.deadline.
+public class Deadline {
+    public static final String CONTEXT_KEY = "es.deadline";
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public static Deadline after(long timeoutMs) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+
+    // Milliseconds left, 0 once the deadline has passed
+    public long remainingMs() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,313 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.apache.http.HttpHost;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.RestClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Elasticsearch endpoints requests are spread over. es.endpoints lists them as url=weight, e.g. a domain
+    and the read replica cluster kept for failover; without it es.scheme://es.host:es.port is the only one.
+    Each request goes to the cheaper of two endpoints picked at random in proportion to their weights (power
+    of two choices), the cost being the moving average latency of the endpoint times its requests in flight
+    plus one, divided by its weight. Endpoints of weight 0 are standbys, used only while no other is available.
+    An endpoint that failed ejectFailures requests in a row (connection errors, timeouts, 5xx, 429) gets no
+    requests for ejectMs, twice as long every time it fails again right after coming back, up to maxEjectMs.
+    When every endpoint is ejected, requests go to the one due back first.
+ */
+@Component
+public class EndpointRouter {
+    private static final Logger logger = LogManager.getLogger(EndpointRouter.class);
+
+    // Set while the requests of a thread must go to one endpoint, see callOn
+    private static final ThreadLocal<Endpoint> PINNED = new ThreadLocal<>();
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final double decayNanos;
+    private final int ejectFailures;
+    private final long ejectNanos;
+    private final long maxEjectNanos;
+
+    public class Endpoint {
+        private final String name;
+        private final int weight;
+        private final RestClient client;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        // Guarded by this, latencyNanos is -1 until the first answer
+        private double latencyNanos = -1;
+        private long sampledAt = System.nanoTime();
+        private int consecutiveFailures;
+        private long ejectedUntil;
+        private long nextEjectNanos = ejectNanos;
+        private long ejections;
+
+        private Endpoint(String name, int weight, RestClient client) {
+            this.name = name;
+            this.weight = weight;
+            this.client = client;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public RestClient getClient() {
+            return client;
+        }
+
+        private double share() {
+            return Math.max(weight, 1);
+        }
+
+        // The latency fades while the endpoint gets no requests, so one that was slow is tried again eventually.
+        // An endpoint that hasn't answered yet gets one request at a time.
+        private synchronized double cost(long now) {
+            if (latencyNanos < 0) {
+                return inFlight.get() == 0 ? 0 : Double.MAX_VALUE;
+            }
+            double latency = latencyNanos * Math.exp(-(now - sampledAt) / decayNanos);
+            return latency * (inFlight.get() + 1) / share();
+        }
+
+        private synchronized boolean isEjected(long now) {
+            return now - ejectedUntil < 0;
+        }
+
+        private synchronized long ejectedUntil() {
+            return ejectedUntil;
+        }
+
+        private synchronized void record(Throwable error, long latency) {
+            long now = System.nanoTime();
+            if (CircuitBreaker.isFailure(error)) {
+                failures.increment();
+                // A fast failure must not make the endpoint look cheap
+                latencyNanos = Math.max(latencyNanos, latency);
+                sampledAt = now;
+                if (++consecutiveFailures >= ejectFailures) {
+                    ejectedUntil = now + nextEjectNanos;
+                    ejections++;
+                    logger.warn("Elasticsearch endpoint " + name + " ejected for " + TimeUnit.NANOSECONDS.toMillis(nextEjectNanos)
+                            + "ms after " + consecutiveFailures + " failed requests, last: " + error);
+                    nextEjectNanos = Math.min(nextEjectNanos * 2, maxEjectNanos);
+                    consecutiveFailures = 0;
+                }
+                return;
+            }
+            consecutiveFailures = 0;
+            nextEjectNanos = ejectNanos;
+            // Peak-sensitive moving average: a slower response is taken as is, faster ones are averaged in
+            // with a weight growing with the time since the last sample
+            if (latencyNanos < 0 || latency >= latencyNanos) {
+                latencyNanos = latency;
+            } else {
+                double keep = Math.exp(-(now - sampledAt) / decayNanos);
+                latencyNanos = latencyNanos * keep + latency * (1 - keep);
+            }
+            sampledAt = now;
+        }
+
+        private synchronized Map<String, Long> stats(long now) {
+            Map<String, Long> values = new TreeMap<>();
+            values.put("weight", (long) weight);
+            values.put("requests", requests.sum());
+            values.put("failures", failures.sum());
+            values.put("in_flight", (long) inFlight.get());
+            values.put("latency_ms", TimeUnit.NANOSECONDS.toMillis((long) Math.max(0, latencyNanos)));
+            values.put("ejected", isEjected(now) ? 1L : 0L);
+            values.put("ejections", ejections);
+            return values;
+        }
+    }
+
+    // A request sent to an endpoint, its outcome must be reported exactly once
+    public class Call {
+        private final Endpoint endpoint;
+        private final long start = System.nanoTime();
+
+        private Call(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            endpoint.requests.increment();
+            endpoint.inFlight.incrementAndGet();
+        }
+
+        public RestClient client() {
+            return endpoint.client;
+        }
+
+        // error: why the request failed, null if it succeeded. Cancelled requests say nothing about the endpoint.
+        public void complete(Throwable error) {
+            endpoint.inFlight.decrementAndGet();
+            if (!CircuitBreaker.isCancellation(error)) {
+                endpoint.record(error, System.nanoTime() - start);
+            }
+        }
+    }
+
+    public EndpointRouter(@Value("${es.endpoints:}") List<String> urls,
+                          @Value("${es.scheme:https}://${es.host:localhost}:${es.port:443}") String defaultUrl,
+                          @Value("${es.routing.decay_ms:10000}") long decayMs,
+                          @Value("${es.routing.eject_failures:5}") int ejectFailures,
+                          @Value("${es.routing.eject_ms:10000}") long ejectMs,
+                          @Value("${es.routing.max_eject_ms:300000}") long maxEjectMs,
+                          RestClientFactory clientFactory) throws IOException {
+        this.decayNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(decayMs));
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMs);
+        this.maxEjectNanos = Math.max(ejectNanos, TimeUnit.MILLISECONDS.toNanos(maxEjectMs));
+        for (String url: urls.isEmpty() ? List.of(defaultUrl) : urls) {
+            // url=weight, the weight defaults to 1
+            String trimmed = url.trim();
+            int weight = 1;
+            int separator = trimmed.lastIndexOf('=');
+            if (separator > 0) {
+                try {
+                    weight = Integer.parseInt(trimmed.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid weight in es.endpoints entry " + trimmed);
+                }
+                trimmed = trimmed.substring(0, separator).trim();
+            }
+            if (weight < 0) {
+                throw new IOException("Invalid weight in es.endpoints entry " + url.trim());
+            }
+            HttpHost host = HttpHost.create(trimmed);
+            endpoints.add(new Endpoint(host.toURI(), weight, clientFactory.build(host)));
+        }
+        logger.info("Elasticsearch endpoints: " + String.join(", ", endpoints.stream().map(e -> e.name + " (weight " + e.weight + ")").toList()));
+    }
+
+    @PreDestroy
+    private void close() {
+        for (Endpoint endpoint: endpoints) {
+            try {
+                endpoint.client.close();
+            } catch (IOException e) {
+                logger.warn("Closing the client of " + endpoint.name + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    // The first endpoint configured, for requests whose answer differs between clusters (e.g. index uuids)
+    public Endpoint primary() {
+        return endpoints.get(0);
+    }
+
+    // Starts a request on the endpoint it is routed to
+    public Call start() {
+        return new Call(route());
+    }
+
+    public Endpoint route() {
+        Endpoint pinned = PINNED.get();
+        if (pinned != null) {
+            return pinned;
+        }
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        long now = System.nanoTime();
+        List<Endpoint> candidates = candidates(now);
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Endpoint first = pick(candidates, null, random);
+        Endpoint second = pick(candidates, first, random);
+        return first.cost(now) <= second.cost(now) ? first : second;
+    }
+
+    // Endpoints that may get the request: the weighted ones that aren't ejected, else the standbys that
+    // aren't, else the one due back first
+    private List<Endpoint> candidates(long now) {
+        List<Endpoint> weighted = new ArrayList<>(endpoints.size());
+        List<Endpoint> standby = new ArrayList<>(0);
+        Endpoint dueFirst = null;
+        for (Endpoint endpoint: endpoints) {
+            if (endpoint.isEjected(now)) {
+                if (dueFirst == null || endpoint.ejectedUntil() - dueFirst.ejectedUntil() < 0) {
+                    dueFirst = endpoint;
+                }
+            } else if (endpoint.weight > 0) {
+                weighted.add(endpoint);
+            } else {
+                standby.add(endpoint);
+            }
+        }
+        return !weighted.isEmpty() ? weighted : !standby.isEmpty() ? standby : List.of(dueFirst);
+    }
+
+    // Random endpoint other than excluded, in proportion to the weights
+    private static Endpoint pick(List<Endpoint> candidates, Endpoint excluded, ThreadLocalRandom random) {
+        double total = 0;
+        for (Endpoint endpoint: candidates) {
+            if (endpoint != excluded) {
+                total += endpoint.share();
+            }
+        }
+        double point = random.nextDouble() * total;
+        Endpoint last = null;
+        for (Endpoint endpoint: candidates) {
+            if (endpoint == excluded) {
+                continue;
+            }
+            last = endpoint;
+            point -= endpoint.share();
+            if (point < 0) {
+                return endpoint;
+            }
+        }
+        return last;
+    }
+
+    // Sends the requests the calling thread makes in call to endpoint, e.g. the ones reading a point in
+    // time, which exists only on the cluster that opened it
+    public <T> T callOn(Endpoint endpoint, ResultCache.Loader<T> call) throws IOException {
+        Endpoint previous = PINNED.get();
+        PINNED.set(endpoint);
+        try {
+            return call.load();
+        } finally {
+            if (previous == null) {
+                PINNED.remove();
+            } else {
+                PINNED.set(previous);
+            }
+        }
+    }
+
+    // Endpoint the requests of the calling thread are pinned to, null if they are routed
+    public Endpoint pinned() {
+        return PINNED.get();
+    }
+
+    // Per endpoint: weight, requests, failures, in_flight, latency_ms (moving average), ejected, ejections
+    public Map<String, Map<String, Long>> stats() {
+        long now = System.nanoTime();
+        Map<String, Map<String, Long>> values = new TreeMap<>();
+        for (Endpoint endpoint: endpoints) {
+            values.put(endpoint.name, endpoint.stats(now));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,233 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.opensearch.client.Request;
+import org.opensearch.client.Response;
+import org.opensearch.client.ResponseException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Metrics of the requests sent to Elasticsearch per index and kind of query: search, aggregations
+    (aggregation-only searches), count, msearch, pit_search, point_in_time and so on. Every request sent
+    records its latency, the bytes of its body and of its response and, if it failed, an error code (the
+    HTTP status or the exception). Every search response records what Elasticsearch reported about it:
+    took, hits returned and aggregation buckets. The searches of an _msearch are recorded under their own
+    index and kind, the _msearch call itself under _all. Nothing is recorded with es.metrics.enabled off.
+ */
+@Component
+public class EsMetrics {
+    public static final String ALL_INDICES = "_all";
+    public static final String SEARCH = "search";
+    public static final String AGGREGATIONS = "aggregations";
+
+    private final boolean enabled;
+    // index -> query -> metrics
+    private final Map<String, Map<String, QueryMetrics>> indices = new ConcurrentHashMap<>();
+
+    private static class QueryMetrics {
+        final LongAdder requests = new LongAdder();
+        final Histogram latency = new Histogram();
+        final LongAdder requestBytes = new LongAdder();
+        final LongAdder responseBytes = new LongAdder();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+        final LongAdder responses = new LongAdder();
+        final Histogram took = new Histogram();
+        final LongAdder hits = new LongAdder();
+        final LongAdder buckets = new LongAdder();
+    }
+
+    public EsMetrics(@Value("${es.metrics.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Index a request reads, _all if its endpoint names none (point in time searches, _msearch)
+    static String indexOf(Request request) {
+        String index = InsESService.indexOf(request.getEndpoint());
+        return index.isEmpty() || index.startsWith("_") ? ALL_INDICES : index;
+    }
+
+    static String queryOf(Request request) {
+        String endpoint = request.getEndpoint();
+        if (endpoint.endsWith(InsESService.PIT_ENDPOINT)) {
+            return "point_in_time";
+        }
+        if (endpoint.endsWith(InsESService.SCROLL_ENDPOINT)) {
+            return "scroll";
+        }
+        if (endpoint.equals(InsESService.SEARCH_ENDPOINT)) {
+            return "pit_search";
+        }
+        if (endpoint.endsWith(InsESService.SEARCH_ENDPOINT)) {
+            return "true".equals(request.getParameters().get(InsESService.REQUEST_CACHE)) ? AGGREGATIONS : SEARCH;
+        }
+        if (endpoint.endsWith(InsESService.MSEARCH_ENDPOINT)) {
+            return "msearch";
+        }
+        if (endpoint.endsWith(InsESService.COUNT_ENDPOINT)) {
+            return "count";
+        }
+        return endpoint.startsWith("/_cat/") ? "cat" : "other";
+    }
+
+    private QueryMetrics metrics(String index, String query) {
+        return indices.computeIfAbsent(index, k -> new ConcurrentHashMap<>()).computeIfAbsent(query, k -> new QueryMetrics());
+    }
+
+    // A request sent. response: null if none arrived, error: why the request failed, null if it succeeded.
+    // Cancelled requests (e.g. the slower attempt of a hedged one) are left out.
+    public void recordCall(Request request, Response response, Throwable error, long latencyNanos) {
+        if (!enabled || CircuitBreaker.isCancellation(error)) {
+            return;
+        }
+        QueryMetrics metrics = metrics(indexOf(request), queryOf(request));
+        metrics.requests.increment();
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        if (request.getEntity() != null && request.getEntity().getContentLength() > 0) {
+            metrics.requestBytes.add(request.getEntity().getContentLength());
+        }
+        long bytes = responseBytes(response == null && error instanceof ResponseException ? ((ResponseException) error).getResponse() : response);
+        if (bytes > 0) {
+            metrics.responseBytes.add(bytes);
+        }
+        if (error != null) {
+            metrics.errors.computeIfAbsent(errorCode(error), k -> new LongAdder()).increment();
+        }
+    }
+
+    // Bytes as sent over the wire, a compressed response is counted compressed
+    private static long responseBytes(Response response) {
+        if (response == null) {
+            return -1;
+        }
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return response.getEntity() == null ? -1 : response.getEntity().getContentLength();
+    }
+
+    // HTTP status of a response, otherwise the kind of exception (timeouts, connection errors)
+    static String errorCode(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof ResponseException) {
+            return String.valueOf(((ResponseException) error).getResponse().getStatusLine().getStatusCode());
+        }
+        return error.getClass().getSimpleName();
+    }
+
+    // A search response decoded into a tree
+    public void recordSearch(Request request, JsonObject response) {
+        if (enabled && response != null && request.getEndpoint().endsWith(InsESService.SEARCH_ENDPOINT)) {
+            recordSearch(indexOf(request), queryOf(request), response);
+        }
+    }
+
+    // A search response streamed through SearchResponseDecoder
+    public void recordSearch(Request request, SearchPage page) {
+        if (enabled) {
+            record(metrics(indexOf(request), queryOf(request)), page.getTook(), page.getHitCount(), countBuckets(page.getAggregations()));
+        }
+    }
+
+    // A search response within an _msearch response, or a single search sent on its own
+    public void recordSearch(String index, String query, JsonObject response) {
+        if (!enabled) {
+            return;
+        }
+        QueryMetrics metrics = metrics(index, query);
+        if (response.has("error")) {
+            String status = response.has("status") ? response.get("status").getAsString() : "error";
+            metrics.errors.computeIfAbsent(status, k -> new LongAdder()).increment();
+            return;
+        }
+        long took = response.has("took") ? response.get("took").getAsLong() : -1;
+        long hits = 0;
+        if (response.has("hits") && response.getAsJsonObject("hits").has("hits")) {
+            hits = response.getAsJsonObject("hits").getAsJsonArray("hits").size();
+        }
+        record(metrics, took, hits, countBuckets(response.get("aggregations")));
+    }
+
+    private static void record(QueryMetrics metrics, long took, long hits, long buckets) {
+        metrics.responses.increment();
+        if (took >= 0) {
+            metrics.took.record(took);
+        }
+        metrics.hits.add(hits);
+        metrics.buckets.add(buckets);
+    }
+
+    // Buckets of all aggregations, sub-aggregations included
+    static long countBuckets(JsonElement element) {
+        if (element == null) {
+            return 0;
+        }
+        long count = 0;
+        if (element.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry: element.getAsJsonObject().entrySet()) {
+                JsonElement value = entry.getValue();
+                if (entry.getKey().equals("buckets")) {
+                    count += value.isJsonArray() ? value.getAsJsonArray().size() : value.isJsonObject() ? value.getAsJsonObject().size() : 0;
+                }
+                if (value.isJsonObject() || value.isJsonArray()) {
+                    count += countBuckets(value);
+                }
+            }
+        } else if (element.isJsonArray()) {
+            for (JsonElement value: (JsonArray) element) {
+                count += countBuckets(value);
+            }
+        }
+        return count;
+    }
+
+    /*
+        Per index and query: requests sent, latency_ms (histogram), request_bytes, response_bytes, errors
+        by code, responses (search responses read), took_ms (histogram of the took reported), hits returned
+        and aggregation buckets
+     */
+    public Map<String, Map<String, Map<String, Object>>> snapshot() {
+        Map<String, Map<String, Map<String, Object>>> result = new TreeMap<>();
+        for (var index: indices.entrySet()) {
+            Map<String, Map<String, Object>> queries = new TreeMap<>();
+            for (var query: index.getValue().entrySet()) {
+                QueryMetrics metrics = query.getValue();
+                Map<String, Object> values = new TreeMap<>();
+                values.put("requests", metrics.requests.sum());
+                values.put("latency_ms", metrics.latency.snapshot());
+                values.put("request_bytes", metrics.requestBytes.sum());
+                values.put("response_bytes", metrics.responseBytes.sum());
+                Map<String, Long> errors = new TreeMap<>();
+                metrics.errors.forEach((code, count) -> errors.put(code, count.sum()));
+                values.put("errors", errors);
+                values.put("responses", metrics.responses.sum());
+                values.put("took_ms", metrics.took.snapshot());
+                values.put("hits", metrics.hits.sum());
+                values.put("buckets", metrics.buckets.sum());
+                queries.put(query.getKey(), values);
+            }
+            result.put(index.getKey(), queries);
+        }
+        return result;
+    }
+}
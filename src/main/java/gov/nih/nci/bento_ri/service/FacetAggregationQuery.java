@@ -0,0 +1,97 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonObject;
+
+import java.util.*;
+
+/*
+    Single request that computes every facet of one index in one shard pass. The main query matches all
+    documents and each facet becomes a filter aggregation that applies every facet filter except its own:
+    {
+        "size": 0,
+        "query": {"match_all": {}},
+        "aggs": {
+            "focus_area_facet": {
+                "filter": {"bool": {"filter": [ <all filters but focus_area> ]}},
+                "aggs": {
+                    "focus_area": {"terms": {"field": "focus_area", "size": 100000}}
+                }
+            },
+            "count": {
+                "filter": {"bool": {"filter": [ <all filters> ]}}
+            }
+        }
+    }
+ */
+public class FacetAggregationQuery implements SearchBody {
+    // Members of the fixed skeleton, in canonical (sorted) key order after "aggs"
+    private static final byte[] MATCH_ALL_QUERY = QueryWriter.fragment("\"query\":{\"match_all\":{}}");
+    private static final byte[] SIZE_ZERO = QueryWriter.fragment("\"size\":0");
+    private static final byte[] MATCH_ALL = QueryWriter.fragment("{\"match_all\":{}}");
+
+    private final FacetFilters filters;
+    // Aggregation name -> (sub-aggregations or null for a count, facet parameter whose filter is left out)
+    private final Map<String, FilterAggregation> aggs = new TreeMap<>();
+
+    private record FilterAggregation(Object subAggregations, String excludedParam) {
+    }
+
+    FacetAggregationQuery(FacetFilters filters) {
+        this.filters = filters;
+    }
+
+    // Scope the aggregations of a query built by InsESService.add*Aggregations to all facet filters
+    // except the one on excludedParam (null to apply every filter)
+    public String addAggregations(String name, Map<String, Object> aggregationQuery, String excludedParam) {
+        aggs.put(name, new FilterAggregation(aggregationQuery.get("aggs"), excludedParam));
+        return name;
+    }
+
+    // Number of documents matching every facet filter, read back with getDocCount
+    public String addCount(String name) {
+        aggs.put(name, new FilterAggregation(null, null));
+        return name;
+    }
+
+    @Override
+    public void writeTo(QueryWriter writer) {
+        writer.beginObject();
+        writer.name("aggs").beginObject();
+        for (var entry: aggs.entrySet()) {
+            FilterAggregation agg = entry.getValue();
+            writer.name(entry.getKey()).beginObject();
+            if (agg.subAggregations() != null) {
+                writer.name("aggs").canonical(agg.subAggregations());
+            }
+            writer.name("filter");
+            List<Object> clauses = filters.getClauses(agg.excludedParam());
+            if (clauses.isEmpty()) {
+                writer.raw(MATCH_ALL);
+            } else {
+                writer.beginObject().name("bool").beginObject().name("filter").canonical(clauses).endObject().endObject();
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.raw(MATCH_ALL_QUERY);
+        writer.raw(SIZE_ZERO);
+        writer.endObject();
+    }
+
+    @Override
+    public boolean isAggregationOnly() {
+        return true;
+    }
+
+    // Response shaped as if the aggregations named 'name' had been requested on their own, so it can
+    // be handed to the collect*Aggs methods of InsESService
+    public static JsonObject getScopedResponse(JsonObject response, String name) {
+        JsonObject scoped = new JsonObject();
+        scoped.add("aggregations", response.getAsJsonObject("aggregations").getAsJsonObject(name));
+        return scoped;
+    }
+
+    public static int getDocCount(JsonObject response, String name) {
+        return response.getAsJsonObject("aggregations").getAsJsonObject(name).get("doc_count").getAsInt();
+    }
+}
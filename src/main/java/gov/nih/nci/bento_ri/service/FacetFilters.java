@@ -0,0 +1,50 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.*;
+
+// Filter clauses of a faceted search kept per filter parameter, so that a query can be built either
+// from all of them or from all but the one belonging to the facet being counted
+public class FacetFilters {
+    private final Map<String, Object> filters = new LinkedHashMap<>();
+    // Filters on fields of the nested "programs" objects, combined into one nested clause
+    private final Map<String, Object> programFilters = new LinkedHashMap<>();
+
+    void addFilter(String param, Object clause) {
+        filters.put(param, clause);
+    }
+
+    void addProgramFilter(String param, Object clause) {
+        programFilters.put(param, clause);
+    }
+
+    // Filter clauses of every parameter except excludedParam (null to keep all of them)
+    public List<Object> getClauses(String excludedParam) {
+        List<Object> filter = new ArrayList<>();
+        for (var entry: filters.entrySet()) {
+            if (!entry.getKey().equals(excludedParam)) {
+                filter.add(entry.getValue());
+            }
+        }
+
+        List<Object> program_filters = new ArrayList<>();
+        for (var entry: programFilters.entrySet()) {
+            if (!entry.getKey().equals(excludedParam)) {
+                program_filters.add(entry.getValue());
+            }
+        }
+        if (program_filters.size() > 0) {
+            // No inner_hits, nothing reads which nested programs matched
+            filter.add(Map.of("nested", Map.of("path", "programs", "query", Map.of("bool", Map.of("filter", program_filters)))));
+        }
+        return filter;
+    }
+
+    // Query clause matching documents that pass every filter except excludedParam
+    public Map<String, Object> toQueryClause(String excludedParam) {
+        List<Object> filter = getClauses(excludedParam);
+        if (filter.isEmpty()) {
+            return Map.of("match_all", Map.of());
+        }
+        return Map.of("bool", Map.of("filter", filter));
+    }
+}
@@ -0,0 +1,134 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs independent Elasticsearch sub-queries of one GraphQL resolver concurrently on a bounded pool,
+// so the resolver latency becomes roughly the latency of its slowest sub-query instead of the sum.
+@Component
+public class FanOutExecutor {
+    private static final Logger logger = LogManager.getLogger(FanOutExecutor.class);
+
+    // Set on the pool's own threads, a task submitted from one of them runs inline instead of waiting for a free thread
+    private static final ThreadLocal<Boolean> POOL_THREAD = ThreadLocal.withInitial(() -> false);
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMs;
+
+    public FanOutExecutor(@Value("${es.fanout.pool_size:16}") int poolSize,
+                          @Value("${es.fanout.queue_size:256}") int queueSize,
+                          @Value("${es.fanout.timeout_ms:30000}") long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(() -> {
+                POOL_THREAD.set(true);
+                runnable.run();
+            }, "es-fanout-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // When the pool and its queue are both full the calling thread runs the sub-query itself,
+        // which degrades to the old sequential behaviour instead of rejecting the request
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        logger.info("Fan-out executor started with " + poolSize + " threads, sub-query timeout " + timeoutMs + "ms");
+    }
+
+    @PreDestroy
+    private void close() {
+        executor.shutdownNow();
+    }
+
+    // Dispatch all sub-queries at once and wait for every one of them, each sub-query gets at most
+    // es.fanout.timeout_ms from the moment it was submitted. Results keep the order of the given tasks.
+    public <T> Map<String, T> invokeAll(Map<String, Callable<T>> tasks) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (var task: tasks.entrySet()) {
+            futures.put(task.getKey(), executor.submit(task.getValue()));
+        }
+
+        Map<String, T> results = new LinkedHashMap<>();
+        try {
+            for (var future: futures.entrySet()) {
+                results.put(future.getKey(), join(future.getKey(), future.getValue(), deadline));
+            }
+        } finally {
+            // Nothing is waiting for the remaining sub-queries anymore if one of them failed
+            if (results.size() < futures.size()) {
+                for (Future<T> future: futures.values()) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return results;
+    }
+
+    // Run a blocking task (e.g. a walk over deep pages or a point in time session) on the pool, for callers
+    // that must not hold their own thread while it waits on Elasticsearch
+    public <T> CompletableFuture<T> supplyAsync(ResultCache.Loader<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable run = () -> {
+            try {
+                future.complete(task.load());
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        };
+        if (POOL_THREAD.get()) {
+            run.run();
+        } else {
+            executor.execute(run);
+        }
+        return future;
+    }
+
+    // Result of a future for blocking callers, failures are rethrown as they were raised
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private <T> T join(String name, Future<T> future, long deadline) throws IOException {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            String msg = "Sub-query '" + name + "' timed out after " + timeoutMs + "ms";
+            logger.error(msg);
+            throw new IOException(msg, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for sub-query '" + name + "'", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Sub-query '" + name + "' failed", cause);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+    Hedged requests for idempotent searches (aggregation-only searches and counts): when an attempt hasn't
+    been answered within the p95 latency of the recent attempts, the request is sent a second time and
+    whichever answer arrives first is used, the other attempt is cancelled. Only a failure of every attempt
+    fails the request. Each request earns maxRatePercent/100 of a hedge, so hedges never exceed that share
+    of the requests even when the whole cluster is slow, and no hedge is sent before minSamples latencies
+    were recorded.
+ */
+@Component
+public class HedgedRequests {
+    // Latencies the p95 is taken from, recomputed every RECOMPUTE_EVERY samples
+    private static final int WINDOW = 1000;
+    private static final int RECOMPUTE_EVERY = 50;
+    // Hedges that may be saved up while requests are fast
+    private static final double MAX_TOKENS = 10;
+
+    private final boolean enabled;
+    private final double tokensPerRequest;
+    private final int minSamples;
+    private final long[] latencies = new long[WINDOW];
+    private long samples;
+    private long delayNanos = -1;
+    private double tokens;
+    private long requests;
+    private long hedged;
+    private long hedgeWins;
+
+    public HedgedRequests(@Value("${es.hedge.enabled:false}") boolean enabled,
+                          @Value("${es.hedge.max_rate_percent:5}") double maxRatePercent,
+                          @Value("${es.hedge.min_samples:100}") int minSamples) {
+        this.enabled = enabled;
+        this.tokensPerRequest = Math.max(0, maxRatePercent) / 100;
+        this.minSamples = Math.max(1, minSamples);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // attempt: sends the request once more each time it is called
+    public <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> attempt) {
+        if (!enabled) {
+            return attempt.get();
+        }
+        long delay = admit();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // Attempts that may still succeed, none is started once this dropped to 0
+        AtomicInteger pending = new AtomicInteger(1);
+        race(attempt, result, pending, false);
+        if (delay >= 0) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+                if (result.isDone() || !tryHedge() || pending.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                    return;
+                }
+                race(attempt, result, pending, true);
+            });
+        }
+        return result;
+    }
+
+    private <T> void race(Supplier<CompletableFuture<T>> attempt, CompletableFuture<T> result, AtomicInteger pending, boolean hedge) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> sent = future;
+        sent.whenComplete((value, error) -> {
+            // Only answered attempts are latency samples: a cancelled loser stopped short of its latency,
+            // counting it would pull the hedge delay down and hedge more
+            if (error == null) {
+                record(System.nanoTime() - start);
+                if (result.complete(value) && hedge) {
+                    won();
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(unwrap(error));
+            }
+        });
+        result.whenComplete((value, error) -> sent.cancel(false));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    // Counts the request and returns how long to wait before hedging it, -1 if it isn't hedged
+    private synchronized long admit() {
+        requests++;
+        tokens = Math.min(MAX_TOKENS, tokens + tokensPerRequest);
+        return delayNanos;
+    }
+
+    private synchronized boolean tryHedge() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        hedged++;
+        return true;
+    }
+
+    private synchronized void won() {
+        hedgeWins++;
+    }
+
+    private synchronized void record(long latencyNanos) {
+        latencies[(int) (samples % WINDOW)] = latencyNanos;
+        samples++;
+        if (samples >= minSamples && (delayNanos < 0 || samples % RECOMPUTE_EVERY == 0)) {
+            long[] window = Arrays.copyOf(latencies, (int) Math.min(samples, WINDOW));
+            Arrays.sort(window);
+            delayNanos = window[(int) Math.ceil(window.length * 0.95) - 1];
+        }
+    }
+
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("requests", requests);
+        values.put("hedged", hedged);
+        values.put("hedge_wins", hedgeWins);
+        values.put("samples", samples);
+        values.put("delay_ms", delayNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        return values;
+    }
+}
@@ -0,0 +1,70 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Distribution of durations in ms over fixed buckets, cheap enough to record on every request. Percentiles
+// are the upper bound of the bucket they fall into.
+public class Histogram {
+    private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    // The last one counts values above every bound
+    private final LongAdder[] counts = new LongAdder[BOUNDS_MS.length + 1];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long ms) {
+        int bucket = 0;
+        while (bucket < BOUNDS_MS.length && ms > BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sum.add(ms);
+        max.accumulate(ms);
+    }
+
+    // count, sum_ms, max_ms, p50_ms, p95_ms, p99_ms and the count of every bucket, keyed le_<bound>
+    public Map<String, Long> snapshot() {
+        long[] values = new long[counts.length];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            values[i] = counts[i].sum();
+            count += values[i];
+        }
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("count", count);
+        result.put("sum_ms", sum.sum());
+        result.put("max_ms", max.get());
+        result.put("p50_ms", percentile(values, count, 0.5));
+        result.put("p95_ms", percentile(values, count, 0.95));
+        result.put("p99_ms", percentile(values, count, 0.99));
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            result.put("le_" + BOUNDS_MS[i], values[i]);
+        }
+        result.put("le_inf", values[BOUNDS_MS.length]);
+        return result;
+    }
+
+    private long percentile(long[] values, long count, double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += values[i];
+            if (seen >= rank) {
+                return BOUNDS_MS[i];
+            }
+        }
+        return max.get();
+    }
+}
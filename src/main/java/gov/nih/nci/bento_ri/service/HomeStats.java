@@ -0,0 +1,35 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Immutable copy of the counters (num_* fields) of the home_stats document
+public record HomeStats(Map<String, Integer> counts, long loadedAt) {
+    public HomeStats {
+        counts = Map.copyOf(counts);
+    }
+
+    public int getCount(String field) throws IOException {
+        Integer count = counts.get(field);
+        if (count == null) {
+            throw new IOException("Error: homepage stats don't contain '" + field + "'!");
+        }
+        return count;
+    }
+
+    public int numGrants() throws IOException {
+        return getCount("num_grants");
+    }
+
+    public int numPrograms() throws IOException {
+        return getCount("num_programs");
+    }
+
+    public int numProjects() throws IOException {
+        return getCount("num_projects");
+    }
+
+    public int numPublications() throws IOException {
+        return getCount("num_publications");
+    }
+}
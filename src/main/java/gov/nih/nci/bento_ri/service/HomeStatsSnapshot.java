@@ -0,0 +1,134 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.Request;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Serves the home page counters from an in-memory copy of the home_stats document instead of fetching
+// the document once per resolver. The copy is reloaded on a schedule and whenever the index changes,
+// concurrent reloads are collapsed into a single Elasticsearch request.
+@Component
+public class HomeStatsSnapshot {
+    private static final Logger logger = LogManager.getLogger(HomeStatsSnapshot.class);
+    public static final String HOME_STATS_END_POINT = "/home_stats/_search";
+    static final String COUNT_PREFIX = "num_";
+
+    private final InsESService insEsService;
+    private final AtomicReference<HomeStats> snapshot = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<HomeStats>> reloading = new AtomicReference<>();
+    private final ScheduledExecutorService scheduler;
+
+    public HomeStatsSnapshot(InsESService insEsService, @Value("${es.home_stats.refresh_ms:300000}") long refreshIntervalMs) {
+        this.insEsService = insEsService;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "home-stats-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        insEsService.getIndexGenerations().addListener(index -> {
+            if (index.equals(InsESService.indexOf(HOME_STATS_END_POINT))) {
+                onIndexChanged();
+            }
+        });
+        if (refreshIntervalMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::refresh, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void close() {
+        scheduler.shutdownNow();
+    }
+
+    // Current snapshot, the first call loads it
+    public HomeStats get() throws IOException {
+        HomeStats stats = snapshot.get();
+        if (stats != null) {
+            return stats;
+        }
+        try {
+            return reload().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading homepage stats", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error: failed to load homepage stats!", e.getCause());
+        }
+    }
+
+    // Signal that home_stats was rebuilt, the old snapshot keeps being served until the new one is loaded
+    public void onIndexChanged() {
+        scheduler.execute(this::refresh);
+    }
+
+    private void refresh() {
+        try {
+            reload().join();
+        } catch (CompletionException e) {
+            logger.error("Failed to refresh homepage stats, keep serving the previous snapshot", e.getCause());
+        }
+    }
+
+    // Only one reload runs at a time, callers arriving meanwhile wait for the one in flight
+    private CompletableFuture<HomeStats> reload() {
+        CompletableFuture<HomeStats> future = new CompletableFuture<>();
+        CompletableFuture<HomeStats> inFlight = reloading.compareAndExchange(null, future);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        try {
+            HomeStats stats = load();
+            snapshot.set(stats);
+            future.complete(stats);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        } finally {
+            reloading.set(null);
+        }
+        return future;
+    }
+
+    private HomeStats load() throws IOException {
+        Request homeStatsRequest = new Request("GET", HOME_STATS_END_POINT);
+        insEsService.trimResponse(homeStatsRequest, "hits.hits._source");
+        JsonObject homeStatsResult = insEsService.send(homeStatsRequest);
+        // Trimmed to hits.hits._source, a search without hits comes back without hits at all
+        JsonObject hitsObject = homeStatsResult.has("hits") ? homeStatsResult.getAsJsonObject("hits") : null;
+        JsonArray hits = hitsObject != null && hitsObject.has("hits") ? hitsObject.getAsJsonArray("hits") : null;
+
+        if (hits == null || hits.size() == 0) {
+            throw new IOException("Error: no results for homepage stats!");
+        }
+
+        JsonObject source = hits.get(0).getAsJsonObject().getAsJsonObject("_source");
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, JsonElement> field: source.entrySet()) {
+            JsonElement value = field.getValue();
+            if (!field.getKey().startsWith(COUNT_PREFIX) || !value.isJsonPrimitive()) {
+                continue;
+            }
+            try {
+                counts.put(field.getKey(), value.getAsInt());
+            } catch (NumberFormatException e) {
+                logger.warn("Homepage stat '" + field.getKey() + "' is not a number: " + value);
+            }
+        }
+        logger.info("Loaded homepage stats: " + counts);
+        return new HomeStats(counts, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,93 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Single-flight execution of identical requests: while a request is in flight, callers sending the same one
+// wait for its result instead of sending it again. Nothing is kept once the request completes.
+@Component
+public class InFlightRequests {
+    private final boolean enabled;
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public InFlightRequests(@Value("${es.coalesce.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, ResultCache.Loader<T> loader) throws IOException {
+        if (!enabled) {
+            return loader.load();
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            return (T) FanOutExecutor.await(running);
+        }
+
+        executed.increment();
+        try {
+            T result = loader.load();
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // Errors included, callers waiting for this call would block forever otherwise
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    // Same as execute for requests that are sent asynchronously, sync and async callers of one key share a call
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(String key, Supplier<CompletableFuture<T>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            // A dependent stage, so no caller can complete the shared future itself
+            return running.thenApply(result -> (T) result);
+        }
+
+        executed.increment();
+        CompletableFuture<T> result;
+        try {
+            result = loader.get();
+        } catch (Throwable e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, error) -> {
+            inFlight.remove(key, future);
+            if (error != null) {
+                future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                future.complete(value);
+            }
+        });
+        return future.thenApply(value -> (T) value);
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("executed", executed.sum());
+        values.put("coalesced", coalesced.sum());
+        values.put("in_flight", (long) inFlight.size());
+        return values;
+    }
+}
@@ -0,0 +1,101 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Version of every watched index: a hash of its metadata (concrete index behind the alias, its uuid,
+// creation date and document count), so it changes whenever the index is reloaded and every node derives
+// the same version from the same index, whenever it started. Caches put the versions into their keys,
+// so a reloaded index makes every older entry unreachable at once, the Redis entries shared by all nodes
+// included.
+public class IndexGenerations {
+    private static final Logger logger = LogManager.getLogger(IndexGenerations.class);
+    // Version of an index not seen yet, or not watched
+    public static final String UNKNOWN = "unknown";
+    // Hex digits of the hash kept in a version
+    private static final int VERSION_LENGTH = 16;
+
+    private final List<String> indices;
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private volatile String fingerprint;
+
+    IndexGenerations(List<String> indices) {
+        this.indices = List.copyOf(indices);
+        fingerprint = buildFingerprint();
+    }
+
+    public List<String> getIndices() {
+        return indices;
+    }
+
+    public String version(String index) {
+        return versions.getOrDefault(index, UNKNOWN);
+    }
+
+    // Versions of all watched indices in one string, for keys of results that read several indices. Null
+    // until every watched index has been seen once: keys built before would be the same on every node
+    // and for any content of the indices.
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    // Called with the name of an index whenever its version changes after the first time it was seen
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    // signature: the metadata of the index as read from the cluster, "missing" if there is no such index
+    void update(String index, String signature) {
+        String version = hash(signature);
+        String previous = versions.put(index, version);
+        if (version.equals(previous)) {
+            return;
+        }
+        fingerprint = buildFingerprint();
+        if (previous == null) {
+            return;
+        }
+        logger.info("Index " + index + " changed, now at version " + version);
+        for (Consumer<String> listener: listeners) {
+            try {
+                listener.accept(index);
+            } catch (RuntimeException e) {
+                logger.error("Index change listener failed for " + index, e);
+            }
+        }
+    }
+
+    private String buildFingerprint() {
+        StringJoiner joiner = new StringJoiner(".");
+        for (String index: indices) {
+            String version = versions.get(index);
+            if (version == null) {
+                return null;
+            }
+            joiner.add(version);
+        }
+        return hash(joiner.toString());
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < VERSION_LENGTH / 2; i++) {
+                result.append(String.format("%02x", digest[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
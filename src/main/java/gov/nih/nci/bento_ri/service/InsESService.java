@@ -4,10 +4,10 @@ import com.google.gson.*;
 import gov.nih.nci.bento.model.ConfigurationDAO;
 import gov.nih.nci.bento.service.ESService;
 import gov.nih.nci.bento.service.RedisService;
-import gov.nih.nci.bento.service.connector.AWSClient;
-import gov.nih.nci.bento.service.connector.AbstractClient;
-import gov.nih.nci.bento.service.connector.DefaultClient;
+import graphql.GraphQLContext;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -15,15 +15,38 @@ import org.opensearch.client.*;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 @Service("InsESService")
 public class InsESService extends ESService {
     public static final String SCROLL_ENDPOINT = "/_search/scroll";
+    public static final String SEARCH_ENDPOINT = "/_search";
+    public static final String MSEARCH_ENDPOINT = "/_msearch";
+    public static final String PIT_ENDPOINT = "/_search/point_in_time";
+    public static final String FILTER_PATH = "filter_path";
+    public static final String REQUEST_CACHE = "request_cache";
+    public static final String TIMEOUT = "timeout";
+    public static final String ALLOW_PARTIAL_RESULTS = "allow_partial_search_results";
+    public static final String COUNT_ENDPOINT = "/_count";
+    // Used for search_after when a caller doesn't name a unique field of its own
+    public static final String DEFAULT_TIEBREAKER = "_id";
     public static final String JSON_OBJECT = "jsonObject";
     public static final String AGGS = "aggs";
     public static final int MAX_ES_SIZE = 10000;
@@ -42,6 +65,9 @@ public class InsESService extends ESService {
         ))
     );
 
+    static final ContentType NDJSON = ContentType.create("application/x-ndjson", "UTF-8");
+    private static final byte[] REQUEST_CACHE_HEADER = QueryWriter.fragment("\"" + REQUEST_CACHE + "\":true");
+
     static final AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
 
     private static final Logger logger = LogManager.getLogger(RedisService.class);
@@ -49,33 +75,505 @@ public class InsESService extends ESService {
     @Autowired
     private ConfigurationDAO config;
 
-    private RestClient client;
+    @Autowired
+    private FanOutExecutor fanOutExecutor;
+
+    @Autowired
+    private PayloadStats payloadStats;
+
+    @Autowired
+    private PageCursorCache pageCursorCache;
+
+    @Autowired
+    private InFlightRequests inFlightRequests;
+
+    @Autowired
+    private Bulkheads bulkheads;
+
+    @Autowired
+    private HedgedRequests hedgedRequests;
+
+    @Autowired
+    private CircuitBreaker circuitBreaker;
+
+    @Autowired
+    private EsMetrics esMetrics;
+
+    // Time the Elasticsearch requests of a GraphQL request get when its context carries no deadline, 0 for none
+    @Value("${es.deadline.default_ms:30000}")
+    private long defaultDeadlineMs;
+
+    @Value("${es.index_generation.indices:grants,programs,projects,faceted_projects,publications,home_stats}")
+    private List<String> watchedIndices;
+
+    @Value("${es.index_generation.poll_ms:60000}")
+    private long indexGenerationPollMs;
+
+    private IndexGenerations indexGenerations;
+
+    private ScheduledExecutorService indexWatcher;
+
+    // Send MultiSearchRequests as one _msearch call, otherwise each item is sent concurrently on its own
+    @Value("${es.msearch.enabled:true}")
+    private boolean multiSearchEnabled;
+
+    // One client per endpoint, each request is routed to one of them
+    private final EndpointRouter endpointRouter;
+
+    private final RestClientFactory clientFactory;
 
     private Gson gson = new GsonBuilder().serializeNulls().create();
 
-    private InsESService(ConfigurationDAO config) {
+    private InsESService(ConfigurationDAO config, RestClientFactory clientFactory, EndpointRouter endpointRouter) throws IOException {
         super(config);
         this.gson = new GsonBuilder().serializeNulls().create();
+        this.clientFactory = clientFactory;
         logger.info("Initializing Elasticsearch client");
-        // Base on host name to use signed request (AWS) or not (local)
-        AbstractClient abstractClient = config.isEsSignRequests() ? new AWSClient(config) : new DefaultClient(config);
-        client = abstractClient.getLowLevelElasticClient();
+        // Signed requests (AWS) or not (local) depending on es.sign.requests, see RestClientFactory
+        this.endpointRouter = endpointRouter;
+    }
+
+    @PostConstruct
+    private void watchIndices() {
+        indexGenerations = new IndexGenerations(watchedIndices);
+        if (indexGenerationPollMs <= 0) {
+            return;
+        }
+        indexWatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "es-index-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        indexWatcher.scheduleWithFixedDelay(this::pollIndexGenerations, 0, indexGenerationPollMs, TimeUnit.MILLISECONDS);
     }
 
     @PreDestroy
-    private void close() throws IOException {
-        client.close();
+    private void close() {
+        if (indexWatcher != null) {
+            indexWatcher.shutdownNow();
+        }
+    }
+
+    public IndexGenerations getIndexGenerations() {
+        return indexGenerations;
+    }
+
+    // Index name of an endpoint like /grants/_search
+    static String indexOf(String endpoint) {
+        int end = endpoint.indexOf('/', 1);
+        return end < 0 ? endpoint.substring(1) : endpoint.substring(1, end);
+    }
+
+    // The metadata of every watched index costs one small _cat request, no documents are read. Always asked
+    // of the primary endpoint, the uuids of an index differ between clusters.
+    private void pollIndexGenerations() {
+        for (String index: indexGenerations.getIndices()) {
+            Request request = new Request("GET", "/_cat/indices/" + index);
+            request.addParameter("format", "json");
+            request.addParameter("h", "index,uuid,docs.count,creation.date");
+            try {
+                Response response = endpointRouter.primary().getClient().performRequest(request);
+                JsonArray rows = gson.fromJson(EntityUtils.toString(response.getEntity()), JsonArray.class);
+                // An alias may point to several indices
+                List<String> signature = new ArrayList<>();
+                for (JsonElement row: rows) {
+                    signature.add(row.toString());
+                }
+                Collections.sort(signature);
+                indexGenerations.update(index, signature.toString());
+            } catch (ResponseException e) {
+                if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+                    indexGenerations.update(index, "missing");
+                } else {
+                    logger.warn("Checking index " + index + " failed: " + e.getMessage());
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Checking index " + index + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Deadline of the GraphQL request, the first of its fields that queries Elasticsearch starts the default
+    // budget unless the request came with a deadline of its own. Null if there is none.
+    public Deadline deadline(GraphQLContext context) {
+        Deadline deadline = context.get(Deadline.CONTEXT_KEY);
+        if (deadline == null && defaultDeadlineMs > 0) {
+            deadline = Deadline.after(defaultDeadlineMs);
+            context.put(Deadline.CONTEXT_KEY, deadline);
+        }
+        return deadline;
     }
 
+    // Identical searches sent concurrently share one call and its parsed response, which callers must not modify
     public JsonObject send(Request request) throws IOException{
-        Response response = client.performRequest(request);
+        ConcurrencyLimiter limiter = bulkheads.interactive();
+        if (!isRead(request)) {
+            return readJson(request, performRequest(request, limiter, null));
+        }
+        return inFlightRequests.execute(requestKey(request), () -> readJson(request, performRequest(request, limiter, null)));
+    }
+
+    // Send a search and stream its response through decoder, without building the response String or tree
+    public SearchPage send(Request request, SearchResponseDecoder decoder) throws IOException {
+        return send(request, decoder, bulkheads.interactive(), null);
+    }
+
+    // limiter: bulkhead the search is sent through, shared calls take a single slot. deadline: may be null,
+    // a shared call keeps the deadline of the caller that sent it.
+    private SearchPage send(Request request, SearchResponseDecoder decoder, ConcurrencyLimiter limiter, Deadline deadline) throws IOException {
+        if (!isRead(request)) {
+            return decode(request, performRequest(request, limiter, deadline), decoder);
+        }
+        return inFlightRequests.execute(requestKey(request) + "\n" + decoder.getKey(), () -> decode(request, performRequest(request, limiter, deadline), decoder));
+    }
+
+    /*
+        Non-blocking variants of send, built on the async client: the calling thread returns right away and
+        no thread waits while the request is in flight. Responses are parsed on the common pool rather than
+        on the client's I/O threads. Identical reads are shared with concurrent sync and async callers alike.
+     */
+    public CompletableFuture<JsonObject> sendAsync(Request request) {
+        return sendAsync(request, null, isHedgeable(request));
+    }
+
+    public CompletableFuture<JsonObject> sendAsync(Request request, Deadline deadline) {
+        return sendAsync(request, deadline, isHedgeable(request));
+    }
+
+    private CompletableFuture<JsonObject> sendAsync(Request request, Deadline deadline, boolean hedge) {
+        ConcurrencyLimiter limiter = bulkheads.interactive();
+        if (!isRead(request)) {
+            return performRequestAsync(request, limiter, deadline, false).thenApplyAsync(unchecked(response -> readJson(request, response)));
+        }
+        String key;
+        try {
+            key = requestKey(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return inFlightRequests.executeAsync(key,
+                () -> performRequestAsync(request, limiter, deadline, hedge).thenApplyAsync(unchecked(response -> readJson(request, response))));
+    }
+
+    public CompletableFuture<SearchPage> sendAsync(Request request, SearchResponseDecoder decoder) {
+        return sendAsync(request, decoder, bulkheads.interactive(), null);
+    }
+
+    public CompletableFuture<SearchPage> sendAsync(Request request, SearchResponseDecoder decoder, Deadline deadline) {
+        return sendAsync(request, decoder, bulkheads.interactive(), deadline);
+    }
+
+    private CompletableFuture<SearchPage> sendAsync(Request request, SearchResponseDecoder decoder, ConcurrencyLimiter limiter, Deadline deadline) {
+        if (!isRead(request)) {
+            return performRequestAsync(request, limiter, deadline, false).thenApplyAsync(unchecked(response -> decode(request, response, decoder)));
+        }
+        String key;
+        try {
+            key = requestKey(request) + "\n" + decoder.getKey();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        boolean hedge = isHedgeable(request);
+        return inFlightRequests.executeAsync(key,
+                () -> performRequestAsync(request, limiter, deadline, hedge).thenApplyAsync(unchecked(response -> decode(request, response, decoder))));
+    }
+
+    public interface IOFunction<T, R> {
+        R apply(T value) throws IOException;
+    }
+
+    // Continuation of a future calling code that throws IOException, which then fails the future
+    public static <T, R> Function<T, R> unchecked(IOFunction<T, R> function) {
+        return value -> {
+            try {
+                return function.apply(value);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    private SearchPage decode(Request request, Response response, SearchResponseDecoder decoder) throws IOException {
+        try (InputStream content = content(request, response)) {
+            SearchPage page = decoder.decode(content);
+            esMetrics.recordSearch(request, page);
+            return page;
+        }
+    }
+
+    private JsonObject readJson(Request request, Response response) throws IOException {
+        JsonObject jsonObject;
+        try (Reader reader = new InputStreamReader(content(request, response), StandardCharsets.UTF_8)) {
+            jsonObject = gson.fromJson(reader, JsonObject.class);
+        }
+        esMetrics.recordSearch(request, jsonObject);
+        return jsonObject;
+    }
+
+    // Body of a successful response, its size goes to PayloadStats once it has been read
+    private InputStream content(Request request, Response response) throws IOException {
+        return payloadStats.counting(request.getEndpoint(), request.getParameters().containsKey(FILTER_PATH), response.getEntity().getContent());
+    }
+
+    // Only reads can be shared, every POST/DELETE (e.g. opening a point in time) has to be executed
+    private boolean isRead(Request request) {
+        return request.getMethod().equals("GET");
+    }
+
+    // Counts and aggregation-only searches (marked for the request cache by setSearchBody) are cheap to repeat
+    // and don't depend on which copy of a shard answers, so a slow attempt may be hedged
+    private boolean isHedgeable(Request request) {
+        return isRead(request) && (request.getEndpoint().endsWith(COUNT_ENDPOINT) || "true".equals(request.getParameters().get(REQUEST_CACHE)));
+    }
+
+    // Method, endpoint, parameters and body, requests with equal keys get equal responses
+    // Requests pinned to an endpoint are only shared with requests pinned to the same one
+    private String requestKey(Request request) throws IOException {
+        StringBuilder key = new StringBuilder(request.getMethod()).append(' ').append(request.getEndpoint());
+        EndpointRouter.Endpoint pinned = endpointRouter.pinned();
+        if (pinned != null) {
+            key.append('@').append(pinned.getName());
+        }
+        key.append(new TreeMap<>(request.getParameters()));
+        if (request.getEntity() != null) {
+            key.append('\n').append(EntityUtils.toString(request.getEntity()));
+        }
+        return key.toString();
+    }
+
+    // Send a search but only decode the named aggregations, result has the shape collect*Aggs expect
+    public JsonObject sendForAggregations(Request request, String... aggNames) throws IOException {
+        trimResponse(request, "aggregations");
+        return aggregationsOf(send(request, new SearchResponseDecoder(new String[][]{}, Set.of(aggNames), 0, 0)));
+    }
+
+    public CompletableFuture<JsonObject> sendForAggregationsAsync(Request request, String... aggNames) {
+        return sendForAggregationsAsync(request, null, aggNames);
+    }
+
+    public CompletableFuture<JsonObject> sendForAggregationsAsync(Request request, Deadline deadline, String... aggNames) {
+        trimResponse(request, "aggregations");
+        return sendAsync(request, new SearchResponseDecoder(new String[][]{}, Set.of(aggNames), 0, 0), deadline).thenApply(InsESService::aggregationsOf);
+    }
+
+    private static JsonObject aggregationsOf(SearchPage page) {
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.add("aggregations", page.getAggregations());
+        return jsonObject;
+    }
+
+    private Response performRequest(Request request, ConcurrencyLimiter limiter, Deadline deadline) throws IOException {
+        if (!bulkheads.isEnabled()) {
+            return performRequest(request, withDeadline(request, deadline));
+        }
+        ConcurrencyLimiter.Permit permit = limiter.acquireBlocking();
+        try {
+            Response response = performRequest(request, withDeadline(request, deadline));
+            permit.release(null);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            permit.release(e);
+            throw e;
+        }
+    }
+
+    // hedge: send the request a second time if it is slow, see HedgedRequests. Every attempt takes its own slot.
+    private CompletableFuture<Response> performRequestAsync(Request request, ConcurrencyLimiter limiter, Deadline deadline, boolean hedge) {
+        if (hedge) {
+            return hedgedRequests.execute(() -> performRequestAsync(request, limiter, deadline));
+        }
+        return performRequestAsync(request, limiter, deadline);
+    }
+
+    // The request is sent once the limiter grants a slot, which is freed when the response arrives.
+    // Cancelling the returned future gives up the slot or aborts the request.
+    private CompletableFuture<Response> performRequestAsync(Request request, ConcurrencyLimiter limiter, Deadline deadline) {
+        if (!bulkheads.isEnabled()) {
+            return performRequestAsync(request, deadline);
+        }
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        limiter.acquire().whenComplete((permit, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isDone()) {
+                permit.releaseUnused();
+                return;
+            }
+            CompletableFuture<Response> response = performRequestAsync(request, deadline);
+            response.whenComplete((value, failure) -> {
+                if (response.isCancelled()) {
+                    permit.releaseUnused();
+                } else {
+                    permit.release(failure);
+                }
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(value);
+                }
+            });
+            result.whenComplete((value, failure) -> response.cancel(false));
+        });
+        return result;
+    }
+
+    private CompletableFuture<Response> performRequestAsync(Request request, Deadline deadline) {
+        try {
+            return performRequestAsync(request, withDeadline(request, deadline));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /*
+        Copy of the request bounded by the deadline, or the request itself if there is none. A search gets
+        the remaining time as its Elasticsearch timeout and fails rather than return partial results, and
+        the socket timeout is cut to the remaining time. A request whose deadline has passed isn't sent.
+     */
+    private Request withDeadline(Request request, Deadline deadline) throws IOException {
+        if (deadline == null) {
+            return request;
+        }
+        long remainingMs = deadline.remainingMs();
+        if (remainingMs <= 0) {
+            String msg = "Deadline exceeded before sending " + request.getMethod() + " " + request.getEndpoint();
+            logger.warn(msg);
+            throw new IOException(msg);
+        }
+        Request bounded = new Request(request.getMethod(), request.getEndpoint());
+        bounded.addParameters(request.getParameters());
+        if (request.getEndpoint().endsWith(SEARCH_ENDPOINT) && !request.getParameters().containsKey(TIMEOUT)) {
+            // Whole seconds while at least one is left, so a cached aggregation-only search mostly keeps
+            // the same request cache key
+            bounded.addParameter(TIMEOUT, remainingMs >= 1000 ? remainingMs / 1000 + "s" : remainingMs + "ms");
+            bounded.addParameter(ALLOW_PARTIAL_RESULTS, "false");
+        }
+        bounded.setEntity(request.getEntity());
+        bounded.setOptions(request.getOptions().toBuilder().setRequestConfig(clientFactory.requestConfig(remainingMs)));
+        return bounded;
+    }
+
+    // request: the request as the caller built it, sent: what is actually sent, to the endpoint it is routed
+    // to. Nothing is sent while the circuit breaker is open, the outcome of what is sent is reported to it
+    // and to the endpoint.
+    private Response performRequest(Request request, Request sent) throws IOException {
+        CircuitBreaker.Call call = circuitBreaker.acquire();
+        EndpointRouter.Call routed = endpointRouter.start();
+        long start = System.nanoTime();
+        Response response = null;
+        try {
+            response = routed.client().performRequest(sent);
+            checkResponse(response);
+            call.complete(null);
+            routed.complete(null);
+            esMetrics.recordCall(request, response, null, System.nanoTime() - start);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            call.complete(e);
+            routed.complete(e);
+            esMetrics.recordCall(request, response, e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    // Cancelling the returned future aborts the request
+    private CompletableFuture<Response> performRequestAsync(Request request, Request sent) {
+        CircuitBreaker.Call call;
+        try {
+            call = circuitBreaker.acquire();
+        } catch (CircuitOpenException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        EndpointRouter.Call routed = endpointRouter.start();
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        future.whenComplete((response, error) -> {
+            call.complete(error);
+            routed.complete(error);
+        });
+        long start = System.nanoTime();
+        Cancellable cancellable = routed.client().performRequestAsync(sent, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try {
+                    checkResponse(response);
+                    esMetrics.recordCall(request, response, null, System.nanoTime() - start);
+                    future.complete(response);
+                } catch (IOException | RuntimeException e) {
+                    esMetrics.recordCall(request, response, e, System.nanoTime() - start);
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                esMetrics.recordCall(request, null, exception, System.nanoTime() - start);
+                future.completeExceptionally(exception);
+            }
+        });
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) {
+                cancellable.cancel();
+            }
+        });
+        return future;
+    }
+
+    private Response checkResponse(Response response) throws IOException {
         int statusCode = response.getStatusLine().getStatusCode();
         if (statusCode != 200) {
+            EntityUtils.consumeQuietly(response.getEntity());
             String msg = "Elasticsearch returned code: " + statusCode;
             logger.error(msg);
             throw new IOException(msg);
         }
-        return getJSonFromResponse(response);
+        return response;
+    }
+
+    // Ask Elasticsearch to return only the response paths the caller reads (comma separated), plus took
+    // while metrics are recorded. Returns false when the request is left untrimmed to measure the baseline
+    // size, see PayloadStats.
+    public boolean trimResponse(Request request, String filterPath) {
+        if (!payloadStats.shouldTrim()) {
+            return false;
+        }
+        request.addParameter(FILTER_PATH, esMetrics.isEnabled() ? filterPath + ",took" : filterPath);
+        return true;
+    }
+
+    // Body of a search in canonical form. Aggregation-only searches (size 0) are also marked for the shard
+    // request cache, which only caches size 0 requests and keys them by their exact body bytes.
+    public void setSearchBody(Request request, Map<String, Object> query) {
+        setSearchBody(request, SearchBody.of(query));
+    }
+
+    // The body is written straight to the bytes of the request entity
+    public void setSearchBody(Request request, SearchBody body) {
+        QueryWriter writer = new QueryWriter();
+        body.writeTo(writer);
+        request.setEntity(toEntity(writer, ContentType.APPLICATION_JSON));
+        if (body.isAggregationOnly()) {
+            request.addParameter(REQUEST_CACHE, "true");
+        }
+    }
+
+    // Large bodies are sent gzip compressed when es.transport.request_compression_min_bytes is set
+    private HttpEntity toEntity(QueryWriter writer, ContentType contentType) {
+        int minBytes = clientFactory.getRequestCompressionMinBytes();
+        if (minBytes > 0 && writer.size() >= minBytes) {
+            return writer.toGzipEntity(contentType);
+        }
+        return writer.toEntity(contentType);
+    }
+
+    static boolean isAggregationOnly(Object query) {
+        return query instanceof Map && Integer.valueOf(0).equals(((Map<?, ?>) query).get("size"));
+    }
+
+    // _source includes for the fields a properties mapping reads
+    public List<String> getSourceIncludes(String[][] properties) {
+        return new ArrayList<>(new TreeSet<>(RowProjector.of(properties).getDataFields()));
     }
 
     public JsonObject getJSonFromResponse(Response response) throws IOException {
@@ -84,6 +582,111 @@ public class InsESService extends ESService {
         return jsonObject;
     }
 
+    // Execute all searches of a MultiSearchRequest and decode every response with its own decoder
+    public MultiSearchResponse multiSearch(MultiSearchRequest multiSearch) throws IOException {
+        List<MultiSearchRequest.Item<?>> items = multiSearch.getItems();
+        List<JsonObject> responses = multiSearchEnabled ? sendMultiSearch(items) : sendEachSearch(items);
+        return decodeAll(items, responses);
+    }
+
+    public CompletableFuture<MultiSearchResponse> multiSearchAsync(MultiSearchRequest multiSearch) {
+        return multiSearchAsync(multiSearch, null);
+    }
+
+    // An _msearch has no timeout of its own, only the socket timeout bounds it. It is hedged when all its
+    // searches are aggregation-only.
+    public CompletableFuture<MultiSearchResponse> multiSearchAsync(MultiSearchRequest multiSearch, Deadline deadline) {
+        List<MultiSearchRequest.Item<?>> items = multiSearch.getItems();
+        CompletableFuture<List<JsonObject>> responses;
+        if (items.isEmpty()) {
+            responses = CompletableFuture.completedFuture(List.of());
+        } else if (multiSearchEnabled) {
+            boolean hedge = items.stream().allMatch(item -> item.body.isAggregationOnly());
+            responses = sendAsync(multiSearchRequest(items), deadline, hedge).thenApply(unchecked(response -> itemResponses(items, response)));
+        } else {
+            List<CompletableFuture<JsonObject>> searches = new ArrayList<>();
+            for (var item: items) {
+                searches.add(sendAsync(searchRequest(item), deadline));
+            }
+            responses = CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                List<JsonObject> result = new ArrayList<>();
+                for (var search: searches) {
+                    result.add(search.join());
+                }
+                return result;
+            });
+        }
+        return responses.thenApply(unchecked(result -> decodeAll(items, result)));
+    }
+
+    private MultiSearchResponse decodeAll(List<MultiSearchRequest.Item<?>> items, List<JsonObject> responses) throws IOException {
+        List<Object> results = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            results.add(items.get(i).decoder.decode(responses.get(i)));
+        }
+        return new MultiSearchResponse(results);
+    }
+
+    private List<JsonObject> sendMultiSearch(List<MultiSearchRequest.Item<?>> items) throws IOException {
+        if (items.isEmpty()) {
+            return List.of();
+        }
+        return itemResponses(items, send(multiSearchRequest(items)));
+    }
+
+    private Request multiSearchRequest(List<MultiSearchRequest.Item<?>> items) {
+        // _msearch body is NDJSON, a header line naming the index followed by the search body line,
+        // all written into one buffer
+        QueryWriter writer = new QueryWriter(4096);
+        for (var item: items) {
+            writer.beginObject().name("index").value(item.index);
+            if (item.body.isAggregationOnly()) {
+                writer.raw(REQUEST_CACHE_HEADER);
+            }
+            writer.endObject().newLine();
+            item.body.writeTo(writer);
+            writer.newLine();
+        }
+        Request request = new Request("GET", MSEARCH_ENDPOINT);
+        request.setEntity(toEntity(writer, NDJSON));
+        // every item response keeps its status, so trimmed responses stay aligned with the items
+        trimResponse(request, "responses.status,responses.error,responses.hits.total,responses.aggregations"
+                + (esMetrics.isEnabled() ? ",responses.took" : ""));
+        return request;
+    }
+
+    private List<JsonObject> itemResponses(List<MultiSearchRequest.Item<?>> items, JsonObject multiSearchResponse) throws IOException {
+        JsonArray responses = multiSearchResponse.getAsJsonArray("responses");
+
+        List<JsonObject> result = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonObject response = responses.get(i).getAsJsonObject();
+            MultiSearchRequest.Item<?> item = items.get(i);
+            esMetrics.recordSearch(item.index, item.body.isAggregationOnly() ? EsMetrics.AGGREGATIONS : EsMetrics.SEARCH, response);
+            if (response.has("error")) {
+                String msg = "Elasticsearch returned code: " + response.get("status").getAsInt() + " for search '" + items.get(i).key.getName() + "'";
+                logger.error(msg);
+                throw new IOException(msg);
+            }
+            result.add(response);
+        }
+        return result;
+    }
+
+    private List<JsonObject> sendEachSearch(List<MultiSearchRequest.Item<?>> items) throws IOException {
+        Map<String, Callable<JsonObject>> searches = new LinkedHashMap<>();
+        for (var item: items) {
+            searches.put(item.key.getName() + "#" + item.key.getPosition(), () -> send(searchRequest(item)));
+        }
+        return new ArrayList<>(fanOutExecutor.invokeAll(searches).values());
+    }
+
+    private Request searchRequest(MultiSearchRequest.Item<?> item) {
+        Request request = new Request("GET", "/" + item.index + "/_search");
+        setSearchBody(request, item.body);
+        return request;
+    }
+
     // This function build queries with following rules:
     //  - If a list is empty, query will return empty dataset
     //  - If a list has only one element which is empty string, query will return all data available
@@ -135,9 +738,24 @@ public class InsESService extends ESService {
     public Map<String, Object> buildFacetFilterQuery(Map<String, Object> params, Set<String> rangeParams, Set<String> excludedParams, Set<String> regular_fields, String nestedProperty, String indexType) throws IOException {
         Map<String, Object> result = new HashMap<>();
 
-        List<Object> filter = new ArrayList<>();
-        List<Object> program_filters = new ArrayList<>();
+        List<Object> filter = buildFacetFilters(params, rangeParams, excludedParams, indexType).getClauses(null);
+        if (filter.size() == 0) {
+            result.put("query", Map.of("match_all", Map.of()));
+        } else {
+            result.put("query", Map.of("bool", Map.of("filter", filter)));
+        }
         
+        return result;
+    }
+
+    // Aggregation-only query for indexType whose facets can each leave out their own filter, see FacetAggregationQuery
+    public FacetAggregationQuery buildFacetAggregationQuery(Map<String, Object> params, Set<String> rangeParams, Set<String> excludedParams, String indexType) throws IOException {
+        return new FacetAggregationQuery(buildFacetFilters(params, rangeParams, excludedParams, indexType));
+    }
+
+    public FacetFilters buildFacetFilters(Map<String, Object> params, Set<String> rangeParams, Set<String> excludedParams, String indexType) throws IOException {
+        FacetFilters facetFilters = new FacetFilters();
+
         for (String key: params.keySet()) {
             String finalKey = key;
             if (excludedParams.contains(finalKey)) {
@@ -161,7 +779,7 @@ public class InsESService extends ESService {
                     if (higher != null) {
                         range.put("lte", higher);
                     } else {
-                        filter.add(Map.of(
+                        facetFilters.addFilter(finalKey, Map.of(
                             "range", Map.of(key, range)
                         ));
                     }
@@ -179,11 +797,11 @@ public class InsESService extends ESService {
                 // list with only one empty string [""] means return all records
                 if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
                     if (PROGRAM_PARAMS.contains(key) && !List.of("faceted_projects", "programs").contains(indexType)) {
-                        program_filters.add(Map.of(
+                        facetFilters.addProgramFilter(finalKey, Map.of(
                             "terms", Map.of("programs." + key, valueSet)
                         ));
                     } else {
-                        filter.add(Map.of(
+                        facetFilters.addFilter(finalKey, Map.of(
                             "terms", Map.of(key, valueSet)
                         ));
                     }
@@ -191,19 +809,7 @@ public class InsESService extends ESService {
             }
         }
 
-        int FilterLen = filter.size();
-        int programFilterLen = program_filters.size();
-        if (FilterLen + programFilterLen == 0) {
-            result.put("query", Map.of("match_all", Map.of()));
-        } else {
-            if (programFilterLen > 0) {
-                filter.add(Map.of("nested", Map.of("path", "programs", "query", Map.of("bool", Map.of("filter", program_filters)), "inner_hits", Map.of())));
-            }
-
-            result.put("query", Map.of("bool", Map.of("filter", filter)));
-        }
-        
-        return result;
+        return facetFilters;
     }
 
     public Map<String, Object> addAggregations(Map<String, Object> query, String[] termAggNames, String cardinalityAggName, List<String> only_includes) {
@@ -445,66 +1051,154 @@ public class InsESService extends ESService {
     }
 
     public List<Map<String, Object>> collectPage(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset) throws IOException {
-        // data over limit of Elasticsearch, have to use roll API
+        return collectPage(request, query, properties, pageSize, offset, DEFAULT_TIEBREAKER);
+    }
+
+    // tiebreaker: unique field appended to the sort, so deep pages can be fetched with search_after
+    public List<Map<String, Object>> collectPage(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset, String tiebreaker) throws IOException {
         if (pageSize > MAX_ES_SIZE) {
             throw new IOException("Parameter 'first' must not exceeded " + MAX_ES_SIZE);
         }
+        // data over limit of Elasticsearch, have to use search_after
         if (pageSize + offset > MAX_ES_SIZE) {
-            return collectPageWithScroll(request, query, properties, pageSize, offset);
+            return collectPageWithSearchAfter(request.getEndpoint(), query, properties, pageSize, offset, tiebreaker, null);
         }
 
-        // data within limit can use just from/size
+        setPageBody(request, query, properties, pageSize, offset);
+        return send(request, new SearchResponseDecoder(properties, 0, pageSize), bulkheads.forSize(pageSize), null).getRows();
+    }
+
+    public CompletableFuture<List<Map<String, Object>>> collectPageAsync(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset) {
+        return collectPageAsync(request, query, properties, pageSize, offset, DEFAULT_TIEBREAKER);
+    }
+
+    public CompletableFuture<List<Map<String, Object>>> collectPageAsync(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset, String tiebreaker) {
+        return collectPageAsync(request, query, properties, pageSize, offset, tiebreaker, null);
+    }
+
+    // deadline: bounds every request of the page, may be null
+    public CompletableFuture<List<Map<String, Object>>> collectPageAsync(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset, String tiebreaker, Deadline deadline) {
+        if (pageSize > MAX_ES_SIZE) {
+            return CompletableFuture.failedFuture(new IOException("Parameter 'first' must not exceeded " + MAX_ES_SIZE));
+        }
+        // Every step of a search_after walk depends on the one before, the walk runs on the fan-out pool
+        if (pageSize + offset > MAX_ES_SIZE) {
+            return fanOutExecutor.supplyAsync(() -> collectPageWithSearchAfter(request.getEndpoint(), query, properties, pageSize, offset, tiebreaker, deadline));
+        }
+        setPageBody(request, query, properties, pageSize, offset);
+        return sendAsync(request, new SearchResponseDecoder(properties, 0, pageSize), bulkheads.forSize(pageSize), deadline).thenApply(SearchPage::getRows);
+    }
+
+    // data within limit can use just from/size
+    private void setPageBody(Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset) {
         query.put("size", pageSize);
         query.put("from", offset);
-        String queryJson = gson.toJson(query);
-        request.setJsonEntity(queryJson);
+        if (trimResponse(request, "hits.hits._source")) {
+            query.putIfAbsent("_source", getSourceIncludes(properties));
+        }
+        setSearchBody(request, query);
+    }
+
+    /*
+        Deep pages are reached by walking the sorted results with search_after in steps of at most
+        MAX_ES_SIZE hits, starting from the closest cursor PageCursorCache knows for this query and sort.
+        Only the sort values of the skipped hits are transferred and every step boundary is remembered,
+        so the next deeper page of the same query usually starts right where this one ended.
+     */
+    private List<Map<String, Object>> collectPageWithSearchAfter(
+            String endpoint, Map<String, Object> query, String[][] properties, int pageSize, int offset, String tiebreaker, Deadline deadline) throws IOException {
+        Map<String, Object> sortedQuery = sortForSearchAfter(query, properties, tiebreaker);
+        // Cursors of an older version of the index point to the wrong hits
+        String cursorKey = endpoint + "@" + indexGenerations.version(indexOf(endpoint)) + CanonicalJson.toJson(sortedQuery);
+        NavigableMap<Integer, JsonArray> cursors = pageCursorCache.positions(cursorKey);
+        return walkSearchAfter(endpoint, sortedQuery, properties, cursors, pageSize, offset, deadline);
+    }
+
+    // Page of the query read through the point in time of a paging session, every page of the session
+    // sees the index as it was when the session was opened
+    public List<Map<String, Object>> collectPage(PitSession session, Map<String, Object> query, String[][] properties, int pageSize, int offset, String tiebreaker) throws IOException {
+        if (pageSize > MAX_ES_SIZE) {
+            throw new IOException("Parameter 'first' must not exceeded " + MAX_ES_SIZE);
+        }
+        Map<String, Object> sortedQuery = sortForSearchAfter(query, properties, tiebreaker);
+        NavigableMap<Integer, JsonArray> cursors = session.positions(CanonicalJson.toJson(sortedQuery));
+        // A point in time search names no index, the PIT id decides which one is read
+        sortedQuery.put("pit", Map.of("id", session.getPitId(), "keep_alive", session.getKeepAlive()));
+        return walkSearchAfter(SEARCH_ENDPOINT, sortedQuery, properties, cursors, pageSize, offset, null);
+    }
 
-        JsonObject jsonObject = send(request);
-        return collectPage(jsonObject, properties, pageSize);
+    private Map<String, Object> sortForSearchAfter(Map<String, Object> query, String[][] properties, String tiebreaker) {
+        Map<String, Object> sortedQuery = new HashMap<>(query);
+        sortedQuery.remove("size");
+        sortedQuery.remove("from");
+        sortedQuery.put("sort", addTiebreaker(query.get("sort"), tiebreaker));
+        sortedQuery.putIfAbsent("_source", getSourceIncludes(properties));
+        return sortedQuery;
     }
 
-    // offset MUST be multiple of pageSize, otherwise the page won't be complete
-    private List<Map<String, Object>> collectPageWithScroll(
-            Request request, Map<String, Object> query, String[][] properties, int pageSize, int offset) throws IOException {
-        final int optimumSize = ( MAX_ES_SIZE / pageSize ) * pageSize;
-        if (offset % pageSize != 0) {
-            throw new IOException("'offset' must be multiple of 'first'!");
+    // cursors: search_after values of hit number N (1-based) keyed by N, filled in while walking
+    private List<Map<String, Object>> walkSearchAfter(String endpoint, Map<String, Object> sortedQuery, String[][] properties,
+                                                      NavigableMap<Integer, JsonArray> cursors, int pageSize, int offset, Deadline deadline) throws IOException {
+        int position = 0;
+        JsonArray searchAfter = null;
+        Map.Entry<Integer, JsonArray> cursor = cursors.floorEntry(offset);
+        if (cursor != null) {
+            position = cursor.getKey();
+            searchAfter = cursor.getValue();
         }
-        query.put("size", optimumSize);
-        request.setJsonEntity(gson.toJson(query));
-        request.addParameter("scroll", "10S");
-        JsonObject page = rollToPage(request, offset);
-        return collectPage(page, properties, pageSize, offset % optimumSize);
+
+        // Skip ahead until the page fits into a single request
+        while (offset - position + pageSize > MAX_ES_SIZE) {
+            int step = Math.min(MAX_ES_SIZE, offset - position);
+            SearchPage page = searchAfter(endpoint, sortedQuery, properties, searchAfter, step, step, 0, "hits.hits.sort", deadline);
+            if (page.getHitCount() < step) {
+                return new ArrayList<>();
+            }
+            position += step;
+            searchAfter = page.getLastSort();
+            cursors.put(position, searchAfter);
+        }
+
+        int skip = offset - position;
+        SearchPage page = searchAfter(endpoint, sortedQuery, properties, searchAfter, skip + pageSize, skip, pageSize, "hits.hits._source,hits.hits.sort", deadline);
+        if (page.getLastSort() != null) {
+            cursors.put(position + page.getHitCount(), page.getLastSort());
+        }
+        return page.getRows();
     }
 
-    private JsonObject rollToPage(Request request, int offset) throws IOException {
-        int rolledRecords = 0;
-        JsonObject jsonObject = send(request);
-        String scrollId = jsonObject.get("_scroll_id").getAsString();
-        JsonArray searchHits = jsonObject.getAsJsonObject("hits").getAsJsonArray("hits");
-        rolledRecords += searchHits.size();
-
-        while (rolledRecords <= offset && searchHits.size() > 0) {
-            // Keep roll until correct page
-            logger.info("Current records: " + rolledRecords + " collecting...");
-            Request scrollRequest = new Request("POST", SCROLL_ENDPOINT);
-            Map<String, Object> scrollQuery = Map.of(
-                    "scroll", "10S",
-                    "scroll_id", scrollId
-            );
-            scrollRequest.setJsonEntity(gson.toJson(scrollQuery));
-            jsonObject = send(scrollRequest);
-            scrollId = jsonObject.get("_scroll_id").getAsString();
-            searchHits = jsonObject.getAsJsonObject("hits").getAsJsonArray("hits");
-            rolledRecords += searchHits.size();
-        }
-
-        // Now return page
-        scrollId = jsonObject.get("_scroll_id").getAsString();
-        Request clearScrollRequest = new Request("DELETE", SCROLL_ENDPOINT);
-        clearScrollRequest.setJsonEntity("{\"scroll_id\":\"" + scrollId +"\"}");
-        send(clearScrollRequest);
-        return jsonObject;
+    private SearchPage searchAfter(String endpoint, Map<String, Object> sortedQuery, String[][] properties, JsonArray searchAfter,
+                                   int size, int skip, int limit, String filterPath, Deadline deadline) throws IOException {
+        Map<String, Object> query = new HashMap<>(sortedQuery);
+        query.put("size", size);
+        if (searchAfter != null) {
+            query.put("search_after", searchAfter);
+        }
+        if (limit == 0) {
+            // Hits that are only skipped don't need any _source
+            query.put("_source", false);
+        }
+        Request request = new Request("GET", endpoint);
+        trimResponse(request, filterPath);
+        setSearchBody(request, query);
+        return send(request, new SearchResponseDecoder(properties, skip, limit), bulkheads.forSize(size), deadline);
+    }
+
+    // Sort of the query (a single {field: direction} map or a list of them) followed by the tiebreaker
+    private List<Object> addTiebreaker(Object sort, String tiebreaker) {
+        List<Object> sortList = new ArrayList<>();
+        if (sort instanceof List) {
+            sortList.addAll((List<?>) sort);
+        } else if (sort != null) {
+            sortList.add(sort);
+        }
+        for (Object field: sortList) {
+            if (field.equals(tiebreaker) || (field instanceof Map && ((Map<?, ?>) field).containsKey(tiebreaker))) {
+                return sortList;
+            }
+        }
+        sortList.add(Map.of(tiebreaker, "asc"));
+        return sortList;
     }
 
     // Collect a page of data, result will be of pageSize or less if not enough data remains
@@ -518,47 +1212,17 @@ public class InsESService extends ESService {
 
     public List<Map<String, Object>> collectPage(JsonObject jsonObject, String[][] properties, String[][] highlights, int pageSize, int offset) throws IOException {
         List<Map<String, Object>> data = new ArrayList<>();
+        RowProjector projector = RowProjector.of(properties);
 
         JsonArray searchHits = jsonObject.getAsJsonObject("hits").getAsJsonArray("hits");
-        for (int i = 0; i < searchHits.size(); i++) {
-            // skip offset number of documents
-            if (i + 1 <= offset) {
-                continue;
-            }
-            Map<String, Object> row = new HashMap<>();
-            for (String[] prop: properties) {
-                String propName = prop[0];
-                String dataField = prop[1];
-                JsonElement element = searchHits.get(i).getAsJsonObject().get("_source").getAsJsonObject().get(dataField);
-                row.put(propName, getValue(element));
-            }
-            data.add(row);
+        // skip offset number of documents
+        for (int i = offset; i < searchHits.size(); i++) {
+            JsonObject source = searchHits.get(i).getAsJsonObject().getAsJsonObject("_source");
+            data.add(source != null ? projector.project(source) : projector.emptyRow());
             if (data.size() >= pageSize) {
                 break;
             }
         }
         return data;
     }
-
-    // Convert JsonElement into Java collections and primitives
-    private Object getValue(JsonElement element) {
-        Object value = null;
-        if (element == null || element.isJsonNull()) {
-            return null;
-        } else if (element.isJsonObject()) {
-            value = new HashMap<String, Object>();
-            JsonObject object = element.getAsJsonObject();
-            for (String key: object.keySet()) {
-                ((Map<String, Object>) value).put(key, getValue(object.get(key)));
-            }
-        } else if (element.isJsonArray()) {
-            value = new ArrayList<>();
-            for (JsonElement entry: element.getAsJsonArray()) {
-                ((List<Object>)value).add(getValue(entry));
-            }
-        } else {
-            value = element.getAsString();
-        }
-        return value;
-    }
 }
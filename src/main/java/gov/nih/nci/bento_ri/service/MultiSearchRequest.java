@@ -0,0 +1,69 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.*;
+
+// A batch of independent searches against one or more indices that is sent to Elasticsearch as a single
+// _msearch round trip. Every item carries its own decoder, so each response is demultiplexed back into
+// the same type the single-request collect* methods of InsESService produce.
+public class MultiSearchRequest {
+    private final List<Item<?>> items = new ArrayList<>();
+
+    @FunctionalInterface
+    public interface ResponseDecoder<T> {
+        T decode(JsonObject response) throws IOException;
+    }
+
+    // Typed handle for reading the result of one item back from MultiSearchResponse
+    public static final class Key<T> {
+        private final int position;
+        private final String name;
+
+        private Key(int position, String name) {
+            this.position = position;
+            this.name = name;
+        }
+
+        int getPosition() {
+            return position;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    static final class Item<T> {
+        final Key<T> key;
+        final String index;
+        final SearchBody body;
+        final ResponseDecoder<T> decoder;
+
+        private Item(Key<T> key, String index, SearchBody body, ResponseDecoder<T> decoder) {
+            this.key = key;
+            this.index = index;
+            this.body = body;
+            this.decoder = decoder;
+        }
+    }
+
+    public <T> Key<T> add(String name, String index, Map<String, Object> body, ResponseDecoder<T> decoder) {
+        return add(name, index, SearchBody.of(body), decoder);
+    }
+
+    public <T> Key<T> add(String name, String index, SearchBody body, ResponseDecoder<T> decoder) {
+        Key<T> key = new Key<>(items.size(), name);
+        items.add(new Item<>(key, index, body, decoder));
+        return key;
+    }
+
+    List<Item<?>> getItems() {
+        return items;
+    }
+
+    public int size() {
+        return items.size();
+    }
+}
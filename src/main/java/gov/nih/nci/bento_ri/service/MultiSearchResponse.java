@@ -0,0 +1,17 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.List;
+
+// Decoded results of a MultiSearchRequest, in the order the items were added
+public class MultiSearchResponse {
+    private final List<Object> results;
+
+    MultiSearchResponse(List<Object> results) {
+        this.results = results;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(MultiSearchRequest.Key<T> key) {
+        return (T) results.get(key.getPosition());
+    }
+}
@@ -0,0 +1,32 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.gson.JsonArray;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+// search_after cursors (sort values of the last hit before a position) remembered per query and sort,
+// so a deep page can start from the closest known position instead of walking from the first hit
+@Component
+public class PageCursorCache {
+    private final Cache<String, NavigableMap<Integer, JsonArray>> cursors;
+
+    public PageCursorCache(@Value("${es.search_after.cursor_cache_size:1000}") long maxQueries,
+                           @Value("${es.search_after.cursor_ttl_ms:600000}") long ttlMs) {
+        cursors = Caffeine.newBuilder()
+                .maximumSize(maxQueries)
+                .expireAfterAccess(ttlMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    // Cursors known for a query, keyed by hit number (1-based): the sort values of hit N are the
+    // search_after of the page starting at offset N
+    public NavigableMap<Integer, JsonArray> positions(String queryKey) {
+        return cursors.get(queryKey, k -> new ConcurrentSkipListMap<>());
+    }
+}
@@ -0,0 +1,135 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides whether a request gets its response trimmed (filter_path, _source includes) and keeps response
+// size statistics per endpoint. One out of every es.payload.baseline_every requests is left untrimmed,
+// the average size of those is the baseline the bytes saved by trimming are estimated against.
+// Sizes are the bytes of the response bodies as read, after decompression: the size of a compressed
+// response isn't known before it is read, and no Content-Length comes with a chunked one.
+@Component
+public class PayloadStats {
+    private final boolean trimEnabled;
+    private final long baselineEvery;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+
+    private static class EndpointStats {
+        final LongAdder trimmedRequests = new LongAdder();
+        final LongAdder trimmedBytes = new LongAdder();
+        final LongAdder baselineRequests = new LongAdder();
+        final LongAdder baselineBytes = new LongAdder();
+    }
+
+    public PayloadStats(@Value("${es.payload.trim.enabled:true}") boolean trimEnabled,
+                        @Value("${es.payload.baseline_every:1000}") long baselineEvery) {
+        this.trimEnabled = trimEnabled;
+        this.baselineEvery = baselineEvery;
+    }
+
+    public boolean shouldTrim() {
+        if (!trimEnabled) {
+            return false;
+        }
+        return baselineEvery <= 0 || requestCount.incrementAndGet() % baselineEvery != 0;
+    }
+
+    // content: body of a response, its size is recorded once it is closed. The rest of the body is skipped
+    // then, so callers that stop reading early are counted in full.
+    public InputStream counting(String endpoint, boolean trimmed, InputStream content) {
+        return new FilterInputStream(content) {
+            private long bytes;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytes += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                bytes += skipped;
+                return skipped;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    byte[] rest = new byte[8192];
+                    while (read(rest, 0, rest.length) >= 0) {
+                        // counted by read
+                    }
+                    record(endpoint, trimmed, bytes);
+                } finally {
+                    super.close();
+                }
+            }
+        };
+    }
+
+    public void record(String endpoint, boolean trimmed, long bytes) {
+        if (bytes < 0) {
+            return;
+        }
+        EndpointStats stats = endpoints.computeIfAbsent(endpoint, k -> new EndpointStats());
+        if (trimmed) {
+            stats.trimmedRequests.increment();
+            stats.trimmedBytes.add(bytes);
+        } else {
+            stats.baselineRequests.increment();
+            stats.baselineBytes.add(bytes);
+        }
+    }
+
+    // Per endpoint counters plus the estimated number of response bytes trimming saved so far
+    public Map<String, Map<String, Long>> snapshot() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        for (var entry: endpoints.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            long trimmedRequests = stats.trimmedRequests.sum();
+            long trimmedBytes = stats.trimmedBytes.sum();
+            long baselineRequests = stats.baselineRequests.sum();
+            long baselineBytes = stats.baselineBytes.sum();
+            long bytesSaved = 0;
+            if (baselineRequests > 0 && trimmedRequests > 0) {
+                bytesSaved = Math.max(0, trimmedRequests * baselineBytes / baselineRequests - trimmedBytes);
+            }
+            Map<String, Long> values = new TreeMap<>();
+            values.put("trimmed_requests", trimmedRequests);
+            values.put("trimmed_bytes", trimmedBytes);
+            values.put("baseline_requests", baselineRequests);
+            values.put("baseline_bytes", baselineBytes);
+            values.put("estimated_bytes_saved", bytesSaved);
+            result.put(entry.getKey(), values);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,8 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.List;
+import java.util.Map;
+
+// Page of an overview table, cursor is the id of the paging session it was read through (null without one)
+public record PitPage(List<Map<String, Object>> rows, String cursor) {
+}
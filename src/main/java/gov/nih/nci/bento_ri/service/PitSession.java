@@ -0,0 +1,58 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.gson.JsonArray;
+
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// A paging session: an Elasticsearch point in time on one index plus the search_after cursors walked
+// through it, per query and sort. Identified towards clients by an opaque id, see PitSessionRegistry.
+// The point in time exists only on the endpoint that opened it, all requests of the session go there.
+public class PitSession {
+    // Filters or sort changed within one session, only the most recent ones keep their cursors
+    private static final int MAX_QUERIES = 20;
+
+    private final String id;
+    private final String index;
+    private final String pitId;
+    private final String keepAlive;
+    private final EndpointRouter.Endpoint endpoint;
+    private final Cache<String, NavigableMap<Integer, JsonArray>> cursors = Caffeine.newBuilder()
+            .maximumSize(MAX_QUERIES)
+            .build();
+
+    PitSession(String id, String index, String pitId, long keepAliveMs, EndpointRouter.Endpoint endpoint) {
+        this.id = id;
+        this.index = index;
+        this.pitId = pitId;
+        this.keepAlive = keepAliveMs + "ms";
+        this.endpoint = endpoint;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPitId() {
+        return pitId;
+    }
+
+    public EndpointRouter.Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    // keep_alive sent with every search, each page extends the point in time by this much
+    public String getKeepAlive() {
+        return keepAlive;
+    }
+
+    NavigableMap<Integer, JsonArray> positions(String queryKey) {
+        return cursors.get(queryKey, k -> new ConcurrentSkipListMap<>());
+    }
+}
@@ -0,0 +1,143 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.Request;
+import org.opensearch.client.ResponseException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Open paging sessions by id. A session expires when it hasn't been used for es.pit.keep_alive_ms, its
+// point in time is closed right away instead of lingering on the cluster until its own keep_alive runs out.
+@Component
+public class PitSessionRegistry {
+    private static final Logger logger = LogManager.getLogger(PitSessionRegistry.class);
+
+    private final InsESService insEsService;
+    private final EndpointRouter endpointRouter;
+    private final long keepAliveMs;
+    private final Cache<String, PitSession> sessions;
+    private final Gson gson = new Gson();
+
+    public PitSessionRegistry(InsESService insEsService,
+                              EndpointRouter endpointRouter,
+                              @Value("${es.pit.keep_alive_ms:300000}") long keepAliveMs,
+                              @Value("${es.pit.max_sessions:1000}") long maxSessions) {
+        this.insEsService = insEsService;
+        this.endpointRouter = endpointRouter;
+        this.keepAliveMs = keepAliveMs;
+        this.sessions = Caffeine.newBuilder()
+                .maximumSize(maxSessions)
+                .expireAfterAccess(keepAliveMs, TimeUnit.MILLISECONDS)
+                .scheduler(Scheduler.systemScheduler())
+                .removalListener((String id, PitSession session, RemovalCause cause) -> {
+                    // Explicitly removed sessions are closed by whoever removed them
+                    if (session != null && cause != RemovalCause.EXPLICIT) {
+                        close(session);
+                    }
+                })
+                .build();
+    }
+
+    @PreDestroy
+    private void closeAll() {
+        List<PitSession> open = new ArrayList<>(sessions.asMap().values());
+        sessions.invalidateAll();
+        open.forEach(this::close);
+    }
+
+    /*
+        Page of an overview query read through the paging session identified by cursor. A new session is
+        opened on the endpoint's index when cursor is null, unknown, expired or belongs to another index.
+        If the point in time of a reused session is gone on the Elasticsearch side, the page is read
+        through a new session instead. Any other failure is rethrown as it is: opening a point in time
+        for every request while Elasticsearch is unavailable or overloaded would only add to its load.
+        A new session whose page can't be read is closed right away.
+     */
+    public PitPage collectPage(String cursor, String endpoint, Map<String, Object> query, String[][] properties,
+                               int pageSize, int offset, String tiebreaker) throws IOException {
+        String index = endpoint.substring(0, endpoint.lastIndexOf(InsESService.SEARCH_ENDPOINT));
+        PitSession session = cursor == null ? null : sessions.getIfPresent(cursor);
+        if (session != null && session.getIndex().equals(index)) {
+            try {
+                return collectPage(session, query, properties, pageSize, offset, tiebreaker);
+            } catch (IOException e) {
+                if (!isPitMissing(e)) {
+                    throw e;
+                }
+                logger.warn("Point in time of paging session " + session.getId() + " is gone, opening a new one: " + e.getMessage());
+                sessions.invalidate(session.getId());
+                close(session);
+            }
+        } else if (cursor != null) {
+            logger.info("Paging session " + cursor + " not found, opening a new one");
+        }
+
+        session = open(index);
+        try {
+            return collectPage(session, query, properties, pageSize, offset, tiebreaker);
+        } catch (IOException | RuntimeException e) {
+            sessions.invalidate(session.getId());
+            close(session);
+            throw e;
+        }
+    }
+
+    // Whether Elasticsearch answered that the point in time doesn't exist (anymore), wherever the
+    // ResponseException is in the causes of error
+    static boolean isPitMissing(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof ResponseException) {
+                ResponseException response = (ResponseException) cause;
+                // The message carries the body of the response
+                return response.getResponse().getStatusLine().getStatusCode() == 404
+                        || String.valueOf(response.getMessage()).contains("search_context_missing_exception");
+            }
+        }
+        return false;
+    }
+
+    private PitPage collectPage(PitSession session, Map<String, Object> query, String[][] properties,
+                                int pageSize, int offset, String tiebreaker) throws IOException {
+        return new PitPage(endpointRouter.callOn(session.getEndpoint(),
+                () -> insEsService.collectPage(session, query, properties, pageSize, offset, tiebreaker)), session.getId());
+    }
+
+    private PitSession open(String index) throws IOException {
+        Request request = new Request("POST", index + InsESService.PIT_ENDPOINT);
+        request.addParameter("keep_alive", keepAliveMs + "ms");
+        EndpointRouter.Endpoint endpoint = endpointRouter.route();
+        JsonObject response = endpointRouter.callOn(endpoint, () -> insEsService.send(request));
+        if (response == null || !response.has("pit_id")) {
+            throw new IOException("Elasticsearch returned no point in time for " + index);
+        }
+        PitSession session = new PitSession(UUID.randomUUID().toString(), index, response.get("pit_id").getAsString(), keepAliveMs, endpoint);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    private void close(PitSession session) {
+        Request request = new Request("DELETE", InsESService.PIT_ENDPOINT);
+        request.setJsonEntity(gson.toJson(Map.of("pit_id", List.of(session.getPitId()))));
+        try {
+            endpointRouter.callOn(session.getEndpoint(), () -> insEsService.send(request));
+        } catch (IOException e) {
+            // Already expired on the cluster, nothing left to free
+            logger.debug("Closing point in time of paging session " + session.getId() + " failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.io.Serializable;
+import java.util.*;
+
+// Fixed-shape, array-backed row produced by RowProjector. All rows of one projector share the same
+// column names and index, so a row costs one Object[] instead of a HashMap with an entry per column.
+// It is still a fully mutable map for code written against maps: keys outside the projection go to an
+// overflow map created on first use, removed columns are remembered in a bit set.
+public class ProjectedRow extends AbstractMap<String, Object> implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final RowProjector.Shape shape;
+    private final Object[] values;
+    private BitSet removed;
+    private LinkedHashMap<String, Object> overflow;
+
+    ProjectedRow(RowProjector.Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    RowProjector.Shape getShape() {
+        return shape;
+    }
+
+    Object getValue(int slot) {
+        return values[slot];
+    }
+
+    // Whether the row holds exactly the columns of its shape, as projected
+    boolean hasOnlyColumns() {
+        return (removed == null || removed.isEmpty()) && (overflow == null || overflow.isEmpty());
+    }
+
+    private boolean isPresent(int slot) {
+        return removed == null || !removed.get(slot);
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = shape.slotOf(key);
+        if (slot >= 0) {
+            return values[slot];
+        }
+        return overflow == null ? null : overflow.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = shape.slotOf(key);
+        if (slot >= 0) {
+            return isPresent(slot);
+        }
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int slot = shape.slotOf(key);
+        if (slot < 0) {
+            if (overflow == null) {
+                overflow = new LinkedHashMap<>();
+            }
+            return overflow.put(key, value);
+        }
+        Object previous = values[slot];
+        values[slot] = value;
+        if (removed != null) {
+            removed.clear(slot);
+        }
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int slot = shape.slotOf(key);
+        if (slot < 0) {
+            return overflow == null ? null : overflow.remove(key);
+        }
+        return removeSlot(slot);
+    }
+
+    private Object removeSlot(int slot) {
+        Object previous = values[slot];
+        values[slot] = null;
+        if (removed == null) {
+            removed = new BitSet(values.length);
+        }
+        removed.set(slot);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        int columns = removed == null ? values.length : values.length - removed.cardinality();
+        return overflow == null ? columns : columns + overflow.size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<>() {
+                    // Next column to return, the overflow entries follow the columns
+                    private int slot = nextPresent(0);
+                    private int last = -1;
+                    private Iterator<Entry<String, Object>> extra;
+
+                    private int nextPresent(int from) {
+                        while (from < values.length && !isPresent(from)) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    private Iterator<Entry<String, Object>> extra() {
+                        if (extra == null) {
+                            extra = overflow == null ? Collections.emptyIterator() : overflow.entrySet().iterator();
+                        }
+                        return extra;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < values.length || extra().hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (slot >= values.length) {
+                            last = -1;
+                            return extra().next();
+                        }
+                        last = slot;
+                        slot = nextPresent(slot + 1);
+                        return new ColumnEntry(last);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last >= 0) {
+                            removeSlot(last);
+                            last = -1;
+                        } else {
+                            extra().remove();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ProjectedRow.this.size();
+            }
+        };
+    }
+
+    private class ColumnEntry extends SimpleEntry<String, Object> {
+        private final int slot;
+
+        ColumnEntry(int slot) {
+            super(shape.nameOf(slot), values[slot]);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            values[slot] = value;
+            return super.setValue(value);
+        }
+    }
+}
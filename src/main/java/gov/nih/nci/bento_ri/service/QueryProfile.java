@@ -0,0 +1,60 @@
+package gov.nih.nci.bento_ri.service;
+
+import graphql.language.Document;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Timings of one GraphQL request: every field resolved by a fetcher of its own (property fetchers aren't
+// timed). Kept in the GraphQLContext of the request.
+public class QueryProfile {
+    static final String CONTEXT_KEY = QueryProfile.class.getName();
+    // Fields kept for the slow query log, all of them are counted in the metrics
+    static final int MAX_FIELDS = 200;
+
+    final long startNanos = System.nanoTime();
+    volatile Document document;
+    volatile String operationName;
+    volatile Map<String, Object> variables;
+    final Queue<FieldTiming> fields = new ConcurrentLinkedQueue<>();
+    final AtomicInteger fieldCount = new AtomicInteger();
+    // Timed root fields not resolved yet, -1 until the first one starts
+    final AtomicInteger pendingRootFields = new AtomicInteger(-1);
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    static class FieldTiming {
+        final String path;
+        final long ms;
+        final long size;
+        final boolean failed;
+
+        FieldTiming(String path, long ms, long size, boolean failed) {
+            this.path = path;
+            this.ms = ms;
+            this.size = size;
+            this.failed = failed;
+        }
+    }
+
+    void capture(Document document, String operationName, Map<String, Object> variables) {
+        if (this.document == null) {
+            this.operationName = operationName;
+            this.variables = variables;
+            this.document = document;
+        }
+    }
+
+    void add(FieldTiming field) {
+        if (fieldCount.incrementAndGet() <= MAX_FIELDS) {
+            fields.add(field);
+        }
+    }
+
+    // True only the first time
+    boolean finish() {
+        return finished.compareAndSet(false, true);
+    }
+}
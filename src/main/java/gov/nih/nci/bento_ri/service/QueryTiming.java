@@ -0,0 +1,302 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.Gson;
+import graphql.GraphQLContext;
+import graphql.TrivialDataFetcher;
+import graphql.execution.DataFetcherResult;
+import graphql.language.AstPrinter;
+import graphql.language.AstSignature;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.idl.SchemaDirectiveWiring;
+import graphql.schema.idl.SchemaDirectiveWiringEnvironment;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Time of the GraphQL requests and of every field resolved by a fetcher of its own, with the size of its
+    result (rows of a list, entries of a map, 1 otherwise). Fields are aggregated per schema coordinate
+    (Type.field). Requests taking graphql.slow_query.threshold_ms or longer are written, sampled at
+    graphql.slow_query.sample_percent, to the slow_queries log: the shape of the query (literals and aliases
+    removed), a fingerprint of its variables and the time of each field.
+
+    The timing comes from fieldWiring(), registered on the runtime wiring of the Elasticsearch schema, which
+    wraps its fetchers and reports a request once its last timed root field is resolved. The GraphQL object
+    executing the requests is built by the bento core library, which takes no instrumentation, so parse and
+    validation aren't timed, and requests with no timed root field aren't reported, only their fields.
+ */
+@Component
+public class QueryTiming {
+    public static final String SLOW_QUERY_LOGGER = "slow_queries";
+    private static final Logger slowQueryLogger = LogManager.getLogger(SLOW_QUERY_LOGGER);
+    private static final Gson gson = new Gson();
+
+    private final boolean enabled;
+    private final long slowThresholdMs;
+    private final double samplePercent;
+    // Type.field of the fetchers fieldWiring() wrapped
+    private final Set<String> timedFields = ConcurrentHashMap.newKeySet();
+
+    private final Histogram requestTime = new Histogram();
+    private final LongAdder slowRequests = new LongAdder();
+    private final LongAdder loggedRequests = new LongAdder();
+    private final Map<String, FieldMetrics> fieldMetrics = new ConcurrentHashMap<>();
+
+    private static class FieldMetrics {
+        final Histogram time = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder resultSize = new LongAdder();
+        final LongAccumulator maxResultSize = new LongAccumulator(Math::max, 0);
+    }
+
+    public QueryTiming(@Value("${graphql.timing.enabled:true}") boolean enabled,
+                       @Value("${graphql.slow_query.threshold_ms:1000}") long slowThresholdMs,
+                       @Value("${graphql.slow_query.sample_percent:100}") double samplePercent) {
+        this.enabled = enabled;
+        this.slowThresholdMs = slowThresholdMs;
+        this.samplePercent = samplePercent;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Wraps the fetchers of the fields of object types, other than property fetchers, so they are timed
+    public SchemaDirectiveWiring fieldWiring() {
+        return new SchemaDirectiveWiring() {
+            @Override
+            public GraphQLFieldDefinition onField(SchemaDirectiveWiringEnvironment<GraphQLFieldDefinition> environment) {
+                DataFetcher<?> fetcher = environment.getFieldDataFetcher();
+                if (!enabled || !(environment.getFieldsContainer() instanceof GraphQLObjectType) || fetcher instanceof TrivialDataFetcher) {
+                    return environment.getElement();
+                }
+                timedFields.add(environment.getFieldsContainer().getName() + "." + environment.getElement().getName());
+                return environment.setFieldDataFetcher(env -> {
+                    QueryProfile profile = profile(env.getGraphQlContext());
+                    boolean root = env.getExecutionStepInfo().getPath().getLevel() == 1;
+                    if (root) {
+                        profile.capture(env.getDocument(), env.getOperationDefinition().getName(), env.getVariables());
+                        profile.pendingRootFields.compareAndSet(-1, timedRootFields(env));
+                    }
+                    return time(profile, fetcher, env, root);
+                });
+            }
+        };
+    }
+
+    private QueryProfile profile(GraphQLContext context) {
+        synchronized (context) {
+            QueryProfile profile = context.get(QueryProfile.CONTEXT_KEY);
+            if (profile == null) {
+                profile = new QueryProfile();
+                context.put(QueryProfile.CONTEXT_KEY, profile);
+            }
+            return profile;
+        }
+    }
+
+    // Distinct result keys of the root selection resolved by wrapped fetchers. Fields left out by @skip or
+    // @include are counted too, the requests using them aren't reported, only their fields.
+    private int timedRootFields(DataFetchingEnvironment env) {
+        Set<String> keys = new HashSet<>();
+        collectRootFields(env.getOperationDefinition().getSelectionSet(), env.getFragmentsByName(),
+                env.getExecutionStepInfo().getObjectType().getName(), keys);
+        return keys.size();
+    }
+
+    private void collectRootFields(SelectionSet selectionSet, Map<String, FragmentDefinition> fragments, String type, Set<String> keys) {
+        for (Selection<?> selection: selectionSet.getSelections()) {
+            if (selection instanceof Field) {
+                Field field = (Field) selection;
+                if (timedFields.contains(type + "." + field.getName())) {
+                    keys.add(field.getResultKey());
+                }
+            } else if (selection instanceof InlineFragment) {
+                collectRootFields(((InlineFragment) selection).getSelectionSet(), fragments, type, keys);
+            } else if (selection instanceof FragmentSpread) {
+                FragmentDefinition fragment = fragments.get(((FragmentSpread) selection).getName());
+                if (fragment != null) {
+                    collectRootFields(fragment.getSelectionSet(), fragments, type, keys);
+                }
+            }
+        }
+    }
+
+    // Calls fetcher and records the field once its value, or its future, is there. root: the request is
+    // reported after the last root field.
+    private Object time(QueryProfile profile, DataFetcher<?> fetcher, DataFetchingEnvironment env, boolean root) throws Exception {
+        long start = System.nanoTime();
+        Object value;
+        try {
+            value = fetcher.get(env);
+        } catch (Exception e) {
+            fieldDone(profile, env, start, null, e, root);
+            throw e;
+        }
+        if (value instanceof CompletionStage) {
+            return ((CompletionStage<?>) value).whenComplete((result, error) -> fieldDone(profile, env, start, result, error, root));
+        }
+        fieldDone(profile, env, start, value, null, root);
+        return value;
+    }
+
+    private void fieldDone(QueryProfile profile, DataFetchingEnvironment env, long start, Object value, Throwable error, boolean root) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long size = sizeOf(value);
+        boolean failed = error != null || (value instanceof DataFetcherResult && ((DataFetcherResult<?>) value).hasErrors());
+        String coordinate = env.getExecutionStepInfo().getObjectType().getName() + "." + env.getFieldDefinition().getName();
+        FieldMetrics metrics = fieldMetrics.computeIfAbsent(coordinate, k -> new FieldMetrics());
+        metrics.time.record(ms);
+        metrics.resultSize.add(size);
+        metrics.maxResultSize.accumulate(size);
+        if (failed) {
+            metrics.errors.increment();
+        }
+        profile.add(new QueryProfile.FieldTiming(env.getExecutionStepInfo().getPath().toString(), ms, size, failed));
+        if (root && profile.pendingRootFields.decrementAndGet() == 0) {
+            finish(profile);
+        }
+    }
+
+    static long sizeOf(Object value) {
+        if (value instanceof DataFetcherResult) {
+            value = ((DataFetcherResult<?>) value).getData();
+        }
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).size();
+        }
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).size();
+        }
+        return 1;
+    }
+
+    // Records a request, and writes it to the slow query log if it qualifies. Only the first call counts.
+    private void finish(QueryProfile profile) {
+        if (!profile.finish()) {
+            return;
+        }
+        long totalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - profile.startNanos);
+        requestTime.record(totalMs);
+        if (totalMs < slowThresholdMs) {
+            return;
+        }
+        slowRequests.increment();
+        if (samplePercent < 100 && ThreadLocalRandom.current().nextDouble(100) >= samplePercent) {
+            return;
+        }
+        loggedRequests.increment();
+        slowQueryLogger.info(gson.toJson(slowQueryEntry(profile, totalMs)));
+    }
+
+    Map<String, Object> slowQueryEntry(QueryProfile profile, long totalMs) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("total_ms", totalMs);
+        entry.put("operation", profile.operationName);
+        entry.put("query", shape(profile));
+        entry.put("variables", fingerprint(profile.variables));
+        entry.put("field_count", profile.fieldCount.get());
+        List<Map<String, Object>> fields = new ArrayList<>();
+        for (QueryProfile.FieldTiming field: profile.fields) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("path", field.path);
+            values.put("ms", field.ms);
+            values.put("size", field.size);
+            if (field.failed) {
+                values.put("failed", true);
+            }
+            fields.add(values);
+        }
+        fields.sort((a, b) -> Long.compare((Long) b.get("ms"), (Long) a.get("ms")));
+        entry.put("fields", fields);
+        return entry;
+    }
+
+    // The query with its literals and aliases removed and its fields sorted, so requests differing only in
+    // their values share one shape
+    static String shape(QueryProfile profile) {
+        if (profile.document == null) {
+            return null;
+        }
+        try {
+            return AstPrinter.printAstCompact(new AstSignature().signatureQuery(profile.document, profile.operationName));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Equal for equal variables whatever the order of their keys, without writing their values to the log
+    static String fingerprint(Map<String, Object> variables) {
+        if (variables == null || variables.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(CanonicalJson.toJson(variables).getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                result.append(String.format("%02x", digest[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+        requests: total_ms (histogram), slow (at or above the threshold) and logged
+        (slow and sampled). fields, per Type.field: calls, errors, time_ms (histogram), result_size (sum)
+        and max_result_size
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> requests = new LinkedHashMap<>();
+        requests.put("total_ms", requestTime.snapshot());
+        requests.put("slow", slowRequests.sum());
+        requests.put("logged", loggedRequests.sum());
+        Map<String, Map<String, Object>> fields = new TreeMap<>();
+        fieldMetrics.forEach((coordinate, metrics) -> {
+            Map<String, Object> values = new LinkedHashMap<>();
+            Map<String, Long> time = metrics.time.snapshot();
+            values.put("calls", time.get("count"));
+            values.put("errors", metrics.errors.sum());
+            values.put("time_ms", time);
+            values.put("result_size", metrics.resultSize.sum());
+            values.put("max_result_size", metrics.maxResultSize.get());
+            fields.put(coordinate, values);
+        });
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("requests", requests);
+        result.put("fields", fields);
+        return result;
+    }
+}
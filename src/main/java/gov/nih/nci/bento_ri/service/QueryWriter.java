@@ -0,0 +1,383 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Writes JSON as UTF-8 straight into a growable byte buffer: no Map tree is serialized by reflection and
+    no intermediate String is encoded a second time. Fixed parts of a query are precompiled once with
+    fragment() and copied in with raw(). Commas between members and elements are inserted automatically.
+    Values given as Maps/Lists/Sets are written in the canonical form described in CanonicalJson.
+    Each request body gets a writer of its own, all lines of an _msearch body included, and its bytes are
+    copied out by toByteArray() or the entities. reset() clears a writer so it can be reused, as for the
+    elements of a sorted array.
+ */
+public class QueryWriter {
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final String TERMS = "terms";
+    // Keys of a terms aggregation whose list order is meaningful
+    private static final Set<String> ORDERED_TERMS_KEYS = Set.of("order");
+
+    private byte[] buffer;
+    private int size;
+    // One entry per open object/array: whether something has been written into it already
+    private boolean[] nonEmpty = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public QueryWriter() {
+        this(256);
+    }
+
+    public QueryWriter(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    // Precompiled UTF-8 bytes of a constant JSON fragment (a complete value or one "name":value member)
+    public static byte[] fragment(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public QueryWriter reset() {
+        size = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    public QueryWriter beginObject() {
+        beforeValue();
+        write((byte) '{');
+        push();
+        return this;
+    }
+
+    public QueryWriter endObject() {
+        depth--;
+        write((byte) '}');
+        return this;
+    }
+
+    public QueryWriter beginArray() {
+        beforeValue();
+        write((byte) '[');
+        push();
+        return this;
+    }
+
+    public QueryWriter endArray() {
+        depth--;
+        write((byte) ']');
+        return this;
+    }
+
+    public QueryWriter name(String name) {
+        separate();
+        string(name);
+        write((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    public QueryWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    public QueryWriter value(long value) {
+        beforeValue();
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    public QueryWriter value(Number value) {
+        if (value == null) {
+            return nullValue();
+        }
+        double asDouble = value.doubleValue();
+        if (Double.isNaN(asDouble) || Double.isInfinite(asDouble)) {
+            throw new IllegalArgumentException(value + " is not a valid JSON number");
+        }
+        beforeValue();
+        ascii(value.toString());
+        return this;
+    }
+
+    public QueryWriter value(boolean value) {
+        beforeValue();
+        write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public QueryWriter nullValue() {
+        beforeValue();
+        write(NULL);
+        return this;
+    }
+
+    // A precompiled value, or a precompiled "name":value member when inside an object and no name is pending
+    public QueryWriter raw(byte[] fragment) {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+        write(fragment);
+        return this;
+    }
+
+    // Any value built from Maps, Collections, arrays, JsonElements and scalars, in canonical form
+    public QueryWriter canonical(Object value) {
+        return canonical(value, false);
+    }
+
+    // termValues: value is the list of values of a terms clause, its order doesn't matter
+    private QueryWriter canonical(Object value, boolean termValues) {
+        if (value == null) {
+            return nullValue();
+        } else if (value instanceof String) {
+            return value((String) value);
+        } else if (value instanceof Number) {
+            return value((Number) value);
+        } else if (value instanceof Boolean) {
+            return value((boolean) (Boolean) value);
+        } else if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (var entry: ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            beginObject();
+            for (var entry: sorted.entrySet()) {
+                name(entry.getKey());
+                if (entry.getKey().equals(TERMS) && entry.getValue() instanceof Map) {
+                    termsClause((Map<?, ?>) entry.getValue());
+                } else {
+                    canonical(entry.getValue(), false);
+                }
+            }
+            return endObject();
+        } else if (value instanceof Set || (termValues && value instanceof Collection)) {
+            return sortedArray((Collection<?>) value);
+        } else if (value instanceof Collection) {
+            beginArray();
+            for (Object element: (Collection<?>) value) {
+                canonical(element, false);
+            }
+            return endArray();
+        } else if (value instanceof Object[]) {
+            return canonical(Arrays.asList((Object[]) value), termValues);
+        } else if (value instanceof JsonElement) {
+            return json((JsonElement) value);
+        } else if (value instanceof Character || value instanceof Enum) {
+            return value(value.toString());
+        }
+        throw new IllegalArgumentException("Can't write value of type " + value.getClass().getName());
+    }
+
+    // Body of a terms query ({"field": [values]}) or terms aggregation ({"field": "name", "include": [...]})
+    private void termsClause(Map<?, ?> clause) {
+        Map<String, Object> sorted = new TreeMap<>();
+        for (var entry: clause.entrySet()) {
+            sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        beginObject();
+        for (var entry: sorted.entrySet()) {
+            name(entry.getKey());
+            canonical(entry.getValue(), !ORDERED_TERMS_KEYS.contains(entry.getKey()));
+        }
+        endObject();
+    }
+
+    // Elements ordered by their own canonical JSON
+    private QueryWriter sortedArray(Collection<?> values) {
+        List<byte[]> elements = new ArrayList<>(values.size());
+        QueryWriter elementWriter = new QueryWriter(64);
+        for (Object value: values) {
+            elements.add(elementWriter.reset().canonical(value).toByteArray());
+        }
+        elements.sort(Arrays::compareUnsigned);
+        beginArray();
+        for (byte[] element: elements) {
+            beforeValue();
+            write(element);
+        }
+        return endArray();
+    }
+
+    private QueryWriter json(JsonElement element) {
+        if (element.isJsonNull()) {
+            return nullValue();
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            beginObject();
+            for (String key: new TreeSet<>(object.keySet())) {
+                name(key);
+                json(object.get(key));
+            }
+            return endObject();
+        } else if (element.isJsonArray()) {
+            beginArray();
+            for (JsonElement entry: element.getAsJsonArray()) {
+                json(entry);
+            }
+            return endArray();
+        }
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return value(primitive.getAsBoolean());
+        } else if (primitive.isNumber()) {
+            return value(primitive.getAsNumber());
+        }
+        return value(primitive.getAsString());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public ByteArrayEntity toEntity(ContentType contentType) {
+        return new ByteArrayEntity(toByteArray(), contentType);
+    }
+
+    // Compressed eagerly, so the entity stays repeatable and the same JSON always gives the same bytes
+    public ByteArrayEntity toGzipEntity(ContentType contentType) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray(), contentType);
+        entity.setContentEncoding("gzip");
+        return entity;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    public QueryWriter newLine() {
+        write((byte) '\n');
+        return this;
+    }
+
+    private void push() {
+        if (depth == nonEmpty.length) {
+            nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+        }
+        nonEmpty[depth++] = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    // Comma before every member/element but the first one of the innermost object or array
+    private void separate() {
+        if (depth == 0) {
+            return;
+        }
+        if (nonEmpty[depth - 1]) {
+            write((byte) ',');
+        } else {
+            nonEmpty[depth - 1] = true;
+        }
+    }
+
+    private void string(String value) {
+        ensure(value.length() + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    write((byte) '\\');
+                    write((byte) c);
+                } else if (c < 0x20) {
+                    escape(c);
+                } else {
+                    write((byte) c);
+                }
+            } else if (c < 0x800) {
+                write((byte) (0xC0 | (c >> 6)));
+                write((byte) (0x80 | (c & 0x3F)));
+            } else if (c == '\u2028' || c == '\u2029') {
+                escape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                write((byte) (0xF0 | (codePoint >> 18)));
+                write((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                write((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                write((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, not representable in UTF-8
+                escape(c);
+            } else {
+                write((byte) (0xE0 | (c >> 12)));
+                write((byte) (0x80 | ((c >> 6) & 0x3F)));
+                write((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        write((byte) '"');
+    }
+
+    private void escape(char c) {
+        ensure(6);
+        buffer[size++] = '\\';
+        buffer[size++] = 'u';
+        buffer[size++] = HEX[(c >> 12) & 0xF];
+        buffer[size++] = HEX[(c >> 8) & 0xF];
+        buffer[size++] = HEX[(c >> 4) & 0xF];
+        buffer[size++] = HEX[c & 0xF];
+    }
+
+    private void ascii(String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[size++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void write(byte b) {
+        ensure(1);
+        buffer[size++] = b;
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
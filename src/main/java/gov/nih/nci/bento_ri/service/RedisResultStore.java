@@ -0,0 +1,274 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.SetParams;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Second level of ResultCache, shared by all nodes through Redis. Results are stored in ResultCodec form.
+    A missing key is loaded by one node only: the first one takes a short lock (SET NX PX) next to the key,
+    the others wait for the result to show up and only load it themselves when the lock holder takes
+    too long. Redis errors never fail a query, the result is then loaded from Elasticsearch directly.
+ */
+@Component
+public class RedisResultStore {
+    private static final Logger logger = LogManager.getLogger(RedisResultStore.class);
+    private static final String KEY_PREFIX = "ins:result:";
+    private static final String LOCK_SUFFIX = ":lock";
+    private static final long POLL_INTERVAL_MS = 25;
+    // Delete the lock only when it is still ours, it may have expired and been taken by another node
+    private static final byte[] UNLOCK_SCRIPT = ("if redis.call('get', KEYS[1]) == ARGV[1] then "
+            + "return redis.call('del', KEYS[1]) else return 0 end").getBytes(StandardCharsets.UTF_8);
+    // Outcomes of claim() other than a cached result
+    private static final Object LOCKED = new Object();
+    private static final Object BUSY = new Object();
+    private static final Object UNAVAILABLE = new Object();
+
+    private final boolean enabled;
+    private final long ttlMs;
+    private final long lockMs;
+    private JedisPool pool;
+    private JedisCluster cluster;
+
+    private interface RedisCall<T> {
+        T call(Commands redis);
+    }
+
+    // The few commands used here, on either a single node or a cluster
+    private interface Commands {
+        byte[] get(byte[] key);
+        String set(byte[] key, byte[] value, SetParams params);
+        Object eval(byte[] script, List<byte[]> keys, List<byte[]> args);
+    }
+
+    public RedisResultStore(@Value("${redis.enable:false}") boolean enabled,
+                            @Value("${redis.use_cluster:false}") boolean useCluster,
+                            @Value("${redis.host:localhost}") String host,
+                            @Value("${redis.port:6379}") int port,
+                            @Value("${es.result_cache.ttl_ms:3600000}") long ttlMs,
+                            @Value("${es.result_cache.redis_lock_ms:2000}") long lockMs) {
+        this.enabled = enabled;
+        this.ttlMs = ttlMs;
+        this.lockMs = lockMs;
+        if (!enabled) {
+            return;
+        }
+        logger.info("Initializing Redis result cache on " + host + ":" + port + (useCluster ? " (cluster)" : ""));
+        if (useCluster) {
+            cluster = new JedisCluster(new HostAndPort(host, port));
+        } else {
+            pool = new JedisPool(new JedisPoolConfig(), host, port);
+        }
+    }
+
+    @PreDestroy
+    private void close() {
+        if (pool != null) {
+            pool.close();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Result stored under key, loaded with loader (by this node or another one) when missing
+    public <T> T get(String key, ResultCache.Loader<T> loader) throws IOException {
+        byte[] valueKey = (KEY_PREFIX + key).getBytes(StandardCharsets.UTF_8);
+        byte[] lockKey = (KEY_PREFIX + key + LOCK_SUFFIX).getBytes(StandardCharsets.UTF_8);
+        try {
+            T cached = read(valueKey);
+            if (cached != null) {
+                return cached;
+            }
+            byte[] token = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+            String locked = execute(redis -> redis.set(lockKey, token, SetParams.setParams().nx().px(lockMs)));
+            if ("OK".equals(locked)) {
+                try {
+                    T value = loader.load();
+                    write(valueKey, value);
+                    return value;
+                } finally {
+                    unlock(lockKey, token);
+                }
+            }
+            // Another node is loading it
+            long deadline = System.currentTimeMillis() + lockMs;
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(POLL_INTERVAL_MS);
+                cached = read(valueKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            logger.info("Timed out waiting for another node to load " + key);
+        } catch (JedisException e) {
+            logger.warn("Redis result cache unavailable: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a cached result", e);
+        }
+        return loader.load();
+    }
+
+    /*
+        Same as get for loaders that return a future, without holding a thread while the result is loaded
+        or while another node loads it. Jedis blocks, so only the Redis calls themselves run on runner:
+        the lookup and lock in one task, the write and unlock in another once the load completed, and
+        the polls for the result of another node, spaced by timers instead of sleeps.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> getAsync(String key, ResultCache.AsyncLoader<T> loader, FanOutExecutor runner) {
+        byte[] valueKey = (KEY_PREFIX + key).getBytes(StandardCharsets.UTF_8);
+        byte[] lockKey = (KEY_PREFIX + key + LOCK_SUFFIX).getBytes(StandardCharsets.UTF_8);
+        byte[] token = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+        return runner.supplyAsync(() -> claim(valueKey, lockKey, token)).thenCompose(claimed -> {
+            if (claimed == UNAVAILABLE) {
+                return ResultCache.load(loader);
+            }
+            if (claimed == LOCKED) {
+                CompletableFuture<T> result = ResultCache.load(loader);
+                result.whenComplete((value, error) -> runner.supplyAsync(() -> {
+                    if (error == null) {
+                        write(valueKey, value);
+                    }
+                    unlock(lockKey, token);
+                    return null;
+                }));
+                return result;
+            }
+            if (claimed == BUSY) {
+                return awaitOther(key, valueKey, loader, runner, System.currentTimeMillis() + lockMs);
+            }
+            return CompletableFuture.completedFuture((T) claimed);
+        });
+    }
+
+    // The cached result if there is one, otherwise LOCKED when this node takes the lock and loads it, BUSY
+    // when another node holds the lock, UNAVAILABLE when Redis can't be used
+    private Object claim(byte[] valueKey, byte[] lockKey, byte[] token) {
+        try {
+            Object cached = read(valueKey);
+            if (cached != null) {
+                return cached;
+            }
+            String locked = execute(redis -> redis.set(lockKey, token, SetParams.setParams().nx().px(lockMs)));
+            return "OK".equals(locked) ? LOCKED : BUSY;
+        } catch (JedisException e) {
+            logger.warn("Redis result cache unavailable: " + e.getMessage());
+            return UNAVAILABLE;
+        }
+    }
+
+    // Polls for the result another node is loading until deadline, then loads it here
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> awaitOther(String key, byte[] valueKey, ResultCache.AsyncLoader<T> loader, FanOutExecutor runner, long deadline) {
+        if (System.currentTimeMillis() >= deadline) {
+            logger.info("Timed out waiting for another node to load " + key);
+            return ResultCache.load(loader);
+        }
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS))
+                .thenCompose(ignored -> runner.supplyAsync(() -> {
+                    try {
+                        Object cached = read(valueKey);
+                        return cached != null ? cached : BUSY;
+                    } catch (JedisException e) {
+                        logger.warn("Redis result cache unavailable: " + e.getMessage());
+                        return UNAVAILABLE;
+                    }
+                }))
+                .thenCompose(cached -> {
+                    if (cached == UNAVAILABLE) {
+                        return ResultCache.load(loader);
+                    }
+                    if (cached == BUSY) {
+                        return awaitOther(key, valueKey, loader, runner, deadline);
+                    }
+                    return CompletableFuture.completedFuture((T) cached);
+                });
+    }
+
+    private <T> T read(byte[] valueKey) {
+        byte[] bytes = execute(redis -> redis.get(valueKey));
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return (T) ResultCodec.decode(bytes);
+        } catch (IOException | ClassCastException e) {
+            logger.warn("Ignoring unreadable cached result: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Failures are only logged, the result has been loaded already and is still returned
+    private void write(byte[] valueKey, Object value) {
+        try {
+            byte[] bytes = ResultCodec.encode(value);
+            execute(redis -> redis.set(valueKey, bytes, SetParams.setParams().px(ttlMs)));
+        } catch (IOException e) {
+            // Result not encodable, it stays in the local cache only
+            logger.debug("Result not stored in Redis: " + e.getMessage());
+        } catch (JedisException e) {
+            logger.warn("Result not stored in Redis: " + e.getMessage());
+        }
+    }
+
+    private void unlock(byte[] lockKey, byte[] token) {
+        try {
+            execute(redis -> redis.eval(UNLOCK_SCRIPT, List.of(lockKey), List.of(token)));
+        } catch (JedisException e) {
+            // The lock expires by itself after lockMs
+            logger.warn("Releasing Redis lock failed: " + e.getMessage());
+        }
+    }
+
+    private <T> T execute(RedisCall<T> call) {
+        if (cluster != null) {
+            return call.call(new Commands() {
+                public byte[] get(byte[] key) {
+                    return cluster.get(key);
+                }
+                public String set(byte[] key, byte[] value, SetParams params) {
+                    return cluster.set(key, value, params);
+                }
+                public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+                    return cluster.eval(script, keys, args);
+                }
+            });
+        }
+        // A pooled connection is borrowed for every call and returned right after
+        try (Jedis jedis = pool.getResource()) {
+            return call.call(new Commands() {
+                public byte[] get(byte[] key) {
+                    return jedis.get(key);
+                }
+                public String set(byte[] key, byte[] value, SetParams params) {
+                    return jedis.set(key, value, params);
+                }
+                public Object eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+                    return jedis.eval(script, keys, args);
+                }
+            });
+        }
+    }
+}
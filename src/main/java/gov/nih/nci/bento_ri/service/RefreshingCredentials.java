@@ -0,0 +1,52 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Credentials of a provider chain resolved once and then refreshed in the background, so signing a request
+// never walks the chain (environment, profile files, instance metadata) on the request thread.
+// A failed refresh keeps the previous credentials, the provider refreshes temporary ones before they expire.
+public class RefreshingCredentials implements AWSCredentialsProvider, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(RefreshingCredentials.class);
+
+    private final AWSCredentialsProvider provider;
+    private final ScheduledExecutorService refresher;
+    private volatile AWSCredentials credentials;
+
+    public RefreshingCredentials(AWSCredentialsProvider provider, long refreshMs) {
+        this.provider = provider;
+        credentials = provider.getCredentials();
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "aws-credentials-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public AWSCredentials getCredentials() {
+        return credentials;
+    }
+
+    @Override
+    public void refresh() {
+        try {
+            provider.refresh();
+            credentials = provider.getCredentials();
+        } catch (RuntimeException e) {
+            logger.warn("Refreshing AWS credentials failed, keeping the current ones: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
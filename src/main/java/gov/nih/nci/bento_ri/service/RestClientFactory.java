@@ -0,0 +1,193 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opensearch.client.RestClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Builds the Elasticsearch RestClient of an endpoint on a connection pool sized and timed by es.transport.*,
+// instead of the client defaults (30 connections, 10 per route, no compression). Every endpoint has a pool
+// of its own. Requests are signed for AWS OpenSearch when es.sign.requests is set. Idle connections are
+// closed before the load balancer drops them.
+@Component
+public class RestClientFactory {
+    private static final Logger logger = LogManager.getLogger(RestClientFactory.class);
+    private static final long SELECT_INTERVAL_MS = 100;
+
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final long keepAliveMs;
+    private final long idleEvictMs;
+    private final int ioThreads;
+    private final int connectTimeoutMs;
+    private final int socketTimeoutMs;
+    private final boolean compressResponses;
+    private final int requestCompressionMinBytes;
+    private final String serviceName;
+    private final String region;
+    private final long credentialsRefreshMs;
+    private final boolean signRequests;
+    private final List<PoolingNHttpClientConnectionManager> connectionManagers = new CopyOnWriteArrayList<>();
+    private RefreshingCredentials credentials;
+    private ScheduledExecutorService idleEvictor;
+
+    public RestClientFactory(@Value("${es.transport.max_connections:100}") int maxConnections,
+                             @Value("${es.transport.max_connections_per_route:50}") int maxConnectionsPerRoute,
+                             @Value("${es.transport.keep_alive_ms:60000}") long keepAliveMs,
+                             @Value("${es.transport.idle_evict_ms:30000}") long idleEvictMs,
+                             @Value("${es.transport.io_threads:0}") int ioThreads,
+                             @Value("${es.transport.connect_timeout_ms:1000}") int connectTimeoutMs,
+                             @Value("${es.transport.socket_timeout_ms:30000}") int socketTimeoutMs,
+                             @Value("${es.transport.compress_responses:true}") boolean compressResponses,
+                             @Value("${es.transport.request_compression_min_bytes:0}") int requestCompressionMinBytes,
+                             @Value("${es.service_name:es}") String serviceName,
+                             @Value("${es.region:us-east-1}") String region,
+                             @Value("${es.sign.credentials_refresh_ms:300000}") long credentialsRefreshMs,
+                             @Value("${es.sign.requests:false}") boolean signRequests) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.keepAliveMs = keepAliveMs;
+        this.idleEvictMs = idleEvictMs;
+        this.ioThreads = ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors();
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.socketTimeoutMs = socketTimeoutMs;
+        this.compressResponses = compressResponses;
+        this.requestCompressionMinBytes = requestCompressionMinBytes;
+        this.serviceName = serviceName;
+        this.region = region;
+        this.credentialsRefreshMs = credentialsRefreshMs;
+        this.signRequests = signRequests;
+    }
+
+    public synchronized RestClient build(HttpHost host) throws IOException {
+        PoolingNHttpClientConnectionManager connectionManager = createConnectionManager();
+        connectionManagers.add(connectionManager);
+        Header[] headers = compressResponses ? new Header[]{new BasicHeader("Accept-Encoding", "gzip")} : new Header[0];
+        // Resolved once and refreshed in the background, not on every signed request
+        if (signRequests && credentials == null) {
+            credentials = new RefreshingCredentials(new DefaultAWSCredentialsProviderChain(), credentialsRefreshMs);
+        }
+        RestClient client = RestClient.builder(host)
+                // gzip responses are decompressed by the RestClient itself
+                .setDefaultHeaders(headers)
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setSocketTimeout(socketTimeoutMs))
+                .setHttpClientConfigCallback(httpClient -> {
+                    httpClient.setConnectionManager(connectionManager)
+                            .setKeepAliveStrategy((response, context) -> {
+                                long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                                return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMs) : keepAliveMs;
+                            });
+                    if (credentials != null) {
+                        httpClient.addInterceptorLast(new AwsSigningInterceptor(serviceName, region, credentials));
+                    }
+                    return httpClient;
+                })
+                .build();
+
+        if (idleEvictMs > 0 && idleEvictor == null) {
+            idleEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "es-idle-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            idleEvictor.scheduleWithFixedDelay(() -> connectionManagers.forEach(manager -> {
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(idleEvictMs, TimeUnit.MILLISECONDS);
+            }), idleEvictMs, Math.max(1000, idleEvictMs / 2), TimeUnit.MILLISECONDS);
+        }
+        logger.info("Elasticsearch transport to " + host.toURI() + ": " + maxConnections + " connections (" + maxConnectionsPerRoute + " per route), "
+                + ioThreads + " I/O threads, response compression " + (compressResponses ? "on" : "off"));
+        return client;
+    }
+
+    private PoolingNHttpClientConnectionManager createConnectionManager() throws IOReactorException {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectTimeoutMs)
+                .setSoTimeout(socketTimeoutMs)
+                .setSoKeepAlive(true)
+                // Socket timeouts are checked once per select interval (1s by default), too coarse for deadlines
+                .setSelectInterval(SELECT_INTERVAL_MS)
+                .build();
+        PoolingNHttpClientConnectionManager manager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        manager.setMaxTotal(maxConnections);
+        manager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        return manager;
+    }
+
+    @PreDestroy
+    private void close() {
+        if (idleEvictor != null) {
+            idleEvictor.shutdownNow();
+        }
+        if (credentials != null) {
+            credentials.close();
+        }
+    }
+
+    // Request bodies of at least this many bytes are sent gzip compressed, 0 to never compress
+    public int getRequestCompressionMinBytes() {
+        return requestCompressionMinBytes;
+    }
+
+    // Timeouts of a request that has to be answered within timeoutMs, never longer than the transport's own.
+    // It replaces the client's request config, so the connect timeout is repeated here.
+    public RequestConfig requestConfig(long timeoutMs) {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, Math.max(1, timeoutMs));
+        return RequestConfig.custom()
+                .setConnectTimeout(Math.min(connectTimeoutMs, timeout))
+                .setSocketTimeout(Math.min(socketTimeoutMs, timeout))
+                .setConnectionRequestTimeout(timeout)
+                .build();
+    }
+
+    // Connections of the pools of all endpoints: leased (sending or awaiting a response), available (idle),
+    // pending (requests waiting for a connection) and the maximum
+    public Map<String, Long> poolStats() {
+        Map<String, Long> values = new TreeMap<>();
+        if (connectionManagers.isEmpty()) {
+            return values;
+        }
+        long leased = 0;
+        long available = 0;
+        long pending = 0;
+        long max = 0;
+        for (PoolingNHttpClientConnectionManager manager: connectionManagers) {
+            PoolStats stats = manager.getTotalStats();
+            leased += stats.getLeased();
+            available += stats.getAvailable();
+            pending += stats.getPending();
+            max += stats.getMax();
+        }
+        values.put("leased", leased);
+        values.put("available", available);
+        values.put("pending", pending);
+        values.put("max", max);
+        values.put("utilization_percent", max == 0 ? 0L : 100L * leased / max);
+        return values;
+    }
+}
@@ -0,0 +1,215 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Local cache of resolver results, keyed by resolver name plus a normalized form of its arguments, in
+// front of the Redis cache shared by all nodes (RedisResultStore) when redis.enable is set.
+// Bounded by weight (roughly the number of values a result holds, so many small or few large results),
+// entries expire after es.result_cache.ttl_ms and can be dropped explicitly. Keys include the versions
+// of the watched indices, a reloaded index switches every resolver to fresh results at once. Nothing is
+// cached until the versions of all watched indices are known.
+@Component
+public class ResultCache {
+    private final boolean enabled;
+    private final Set<String> resolvers;
+    // Futures of results, so a load in flight is shared by sync and async callers of the same key
+    private final AsyncCache<String, Object> results;
+    private final RedisResultStore redisStore;
+    private final FanOutExecutor fanOutExecutor;
+    private final IndexGenerations indexGenerations;
+
+    public interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    public interface AsyncLoader<T> {
+        CompletableFuture<T> load() throws IOException;
+    }
+
+    @Autowired
+    public ResultCache(@Value("${es.result_cache.enabled:true}") boolean enabled,
+                       @Value("${es.result_cache.resolvers:searchProjects,grantsOverview,programsOverview,projectsOverview,publicationsOverview,idsLists}") Set<String> resolvers,
+                       @Value("${es.result_cache.max_weight:2000000}") long maxWeight,
+                       @Value("${es.result_cache.ttl_ms:3600000}") long ttlMs,
+                       RedisResultStore redisStore,
+                       InsESService insEsService,
+                       FanOutExecutor fanOutExecutor) {
+        this(enabled, resolvers, maxWeight, ttlMs, redisStore, insEsService.getIndexGenerations(), fanOutExecutor);
+    }
+
+    ResultCache(boolean enabled, Set<String> resolvers, long maxWeight, long ttlMs, RedisResultStore redisStore,
+                IndexGenerations indexGenerations, FanOutExecutor fanOutExecutor) {
+        this.enabled = enabled;
+        this.redisStore = redisStore;
+        this.fanOutExecutor = fanOutExecutor;
+        this.indexGenerations = indexGenerations;
+        this.resolvers = resolvers;
+        this.results = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, Object value) -> weigh(value))
+                .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .buildAsync();
+        // Entries of older versions can't be hit anymore, free their space right away
+        indexGenerations.addListener(index -> results.synchronous().invalidateAll());
+    }
+
+    public boolean isEnabled(String resolver) {
+        return enabled && resolvers.contains(resolver);
+    }
+
+    // Cached result of resolver for key, loaded once when missing: concurrent callers of the same key wait
+    // for that load instead of sending the same query. With Redis enabled a missing result is looked up
+    // there before it is loaded, and loaded results are shared with the other nodes.
+    @SuppressWarnings("unchecked")
+    public <T> T get(String resolver, String key, Loader<T> loader) throws IOException {
+        String cacheKey = cacheKey(resolver, key);
+        if (cacheKey == null) {
+            return loader.load();
+        }
+        try {
+            return (T) FanOutExecutor.await(results.get(cacheKey, (k, executor) -> {
+                try {
+                    return CompletableFuture.completedFuture(redisStore.isEnabled() ? redisStore.get(k, loader) : loader.load());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Same as get for loaders that return a future, the calling thread doesn't wait for the load.
+    // With Redis enabled only the Redis calls run on the fan-out pool, see RedisResultStore.getAsync.
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> getAsync(String resolver, String key, AsyncLoader<T> loader) {
+        String cacheKey = cacheKey(resolver, key);
+        if (cacheKey == null) {
+            return load(loader);
+        }
+        CompletableFuture<Object> result = results.get(cacheKey, (k, executor) -> {
+            if (redisStore.isEnabled()) {
+                return redisStore.getAsync(k, loader, fanOutExecutor);
+            }
+            return load(loader);
+        });
+        return result.thenApply(value -> (T) value);
+    }
+
+    static <T> CompletableFuture<T> load(AsyncLoader<T> loader) {
+        try {
+            return loader.load();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Normalized form of resolver arguments, each a list of values or, for rangeParams, of a lower and an
+    // upper bound. Parameter names are sorted and so are the values of term parameters, so the same filters
+    // give the same key whatever order they were sent in. Empty filters are left out, "all" if none is left.
+    @SuppressWarnings("unchecked")
+    public static String argumentsKey(Map<String, Object> params, Set<String> rangeParams) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (String key: new TreeSet<>(params.keySet())) {
+            if (rangeParams.contains(key)) {
+                // Range parameters, should contain two doubles, first lower bound, then upper bound
+                // Any other values after those two will be ignored
+                List<Integer> bounds = (List<Integer>) params.get(key);
+                if (bounds.size() >= 2) {
+                    Integer lower = bounds.get(0);
+                    Integer higher = bounds.get(1);
+                    if (lower == null && higher == null) {
+                        throw new IOException("Lower bound and Upper bound can't be both null!");
+                    }
+                    keys.add(key.concat(String.valueOf(lower)).concat(String.valueOf(higher)));
+                }
+            } else {
+                List<String> valueSet = (List<String>) params.get(key);
+                // list with only one empty string [""] means return all records
+                if (valueSet.size() > 0 && !(valueSet.size() == 1 && valueSet.get(0).equals(""))) {
+                    keys.add(key.concat(new TreeSet<>(valueSet).toString()));
+                }
+            }
+        }
+        if (keys.size() == 0){
+            return "all";
+        } else {
+            return keys.toString();
+        }
+    }
+
+    // Null if resolver isn't cached, or can't be yet
+    private String cacheKey(String resolver, String key) {
+        String fingerprint = indexGenerations.fingerprint();
+        if (!isEnabled(resolver) || fingerprint == null) {
+            return null;
+        }
+        return resolver + ":" + fingerprint + ":" + key;
+    }
+
+    public void invalidateAll() {
+        results.synchronous().invalidateAll();
+    }
+
+    // Drop every cached result of one resolver
+    public void invalidate(String resolver) {
+        String prefix = resolver + ":";
+        results.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public Map<String, Long> stats() {
+        CacheStats stats = results.synchronous().stats();
+        Map<String, Long> values = new TreeMap<>();
+        values.put("hits", stats.hitCount());
+        values.put("misses", stats.missCount());
+        values.put("evictions", stats.evictionCount());
+        values.put("load_failures", stats.loadFailureCount());
+        values.put("entries", results.synchronous().estimatedSize());
+        return values;
+    }
+
+    // Number of scalar values in a result, at least 1 so empty results still count. A page weighs its rows
+    // and its cursor.
+    static int weigh(Object value) {
+        long weight = 1;
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(value);
+        while (!pending.isEmpty() && weight < Integer.MAX_VALUE) {
+            Object current = pending.pop();
+            if (current instanceof PitPage) {
+                PitPage page = (PitPage) current;
+                pending.push(page.rows());
+                if (page.cursor() != null) {
+                    pending.push(page.cursor());
+                }
+            } else if (current instanceof Map) {
+                for (Object entry: ((Map<?, ?>) current).values()) {
+                    if (entry != null) {
+                        pending.push(entry);
+                    }
+                }
+            } else if (current instanceof Collection) {
+                for (Object entry: (Collection<?>) current) {
+                    if (entry != null) {
+                        pending.push(entry);
+                    }
+                }
+            } else {
+                weight++;
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,236 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Compact binary form of cached resolver results: tagged values with varint lengths, and lists of
+// ProjectedRows written as their column names once followed by the bare values of every row.
+// Only the types resolvers return are supported, anything else fails with an IOException.
+public class ResultCodec {
+    private static final int VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int INT = 3;
+    private static final int LONG = 4;
+    private static final int DOUBLE = 5;
+    private static final int STRING = 6;
+    private static final int LIST = 7;
+    private static final int MAP = 8;
+    private static final int ROWS = 9;
+    private static final int PIT_PAGE = 10;
+
+    private ResultCodec() {
+    }
+
+    public static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        write(out, value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static Object decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cached result version " + version);
+        }
+        return read(in);
+    }
+
+    private static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof PitPage) {
+            PitPage page = (PitPage) value;
+            out.writeByte(PIT_PAGE);
+            write(out, page.rows());
+            write(out, page.cursor());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            RowProjector.Shape shape = sharedShape(list);
+            if (shape != null) {
+                writeRows(out, shape, list);
+            } else {
+                out.writeByte(LIST);
+                writeVarLong(out, list.size());
+                for (Object element: list) {
+                    write(out, element);
+                }
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            writeVarLong(out, map.size());
+            for (var entry: map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                write(out, entry.getValue());
+            }
+        } else {
+            throw new IOException("Can't encode value of type " + value.getClass().getName());
+        }
+    }
+
+    private static void writeRows(DataOutputStream out, RowProjector.Shape shape, List<?> rows) throws IOException {
+        out.writeByte(ROWS);
+        writeVarLong(out, shape.size());
+        for (int slot = 0; slot < shape.size(); slot++) {
+            writeString(out, shape.nameOf(slot));
+        }
+        writeVarLong(out, rows.size());
+        for (Object row: rows) {
+            for (int slot = 0; slot < shape.size(); slot++) {
+                write(out, ((ProjectedRow) row).getValue(slot));
+            }
+        }
+    }
+
+    // Shape of a non-empty list made only of ProjectedRows of one projector holding just their columns,
+    // null otherwise. Rows without columns are left to the LIST form, every row of the ROWS form takes at
+    // least one byte.
+    private static RowProjector.Shape sharedShape(List<?> list) {
+        if (list.isEmpty() || !(list.get(0) instanceof ProjectedRow)) {
+            return null;
+        }
+        RowProjector.Shape shape = ((ProjectedRow) list.get(0)).getShape();
+        if (shape.size() == 0) {
+            return null;
+        }
+        for (Object element: list) {
+            if (!(element instanceof ProjectedRow) || ((ProjectedRow) element).getShape() != shape
+                    || !((ProjectedRow) element).hasOnlyColumns()) {
+                return null;
+            }
+        }
+        return shape;
+    }
+
+    private static Object read(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case INT:
+                return (int) unZigZag(readVarLong(in));
+            case LONG:
+                return unZigZag(readVarLong(in));
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return readString(in);
+            case LIST:
+                int size = readSize(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            case MAP:
+                int entries = readSize(in);
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    String key = readString(in);
+                    map.put(key, read(in));
+                }
+                return map;
+            case ROWS:
+                return readRows(in);
+            case PIT_PAGE:
+                List<Map<String, Object>> rows = (List<Map<String, Object>>) read(in);
+                return new PitPage(rows, (String) read(in));
+            default:
+                throw new IOException("Unknown tag " + tag + " in cached result");
+        }
+    }
+
+    private static List<Object> readRows(DataInputStream in) throws IOException {
+        String[] names = new String[readSize(in)];
+        for (int slot = 0; slot < names.length; slot++) {
+            names[slot] = readString(in);
+        }
+        RowProjector.Shape shape = new RowProjector.Shape(names);
+        int size = readSize(in);
+        List<Object> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Object[] values = new Object[names.length];
+            for (int slot = 0; slot < names.length; slot++) {
+                values[slot] = read(in);
+            }
+            rows.add(new ProjectedRow(shape, values));
+        }
+        return rows;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readSize(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readSize(DataInputStream in) throws IOException {
+        long size = readVarLong(in);
+        // Every element takes at least one byte, a larger size can only come from a corrupt entry and
+        // would allocate for nothing
+        if (size < 0 || size > in.available()) {
+            throw new IOException("Invalid size " + size + " in cached result");
+        }
+        return (int) size;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in cached result");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
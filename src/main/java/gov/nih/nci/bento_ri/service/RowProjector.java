@@ -0,0 +1,191 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compiled form of a {propName, dataField} properties mapping. Field lookups are resolved once per
+// mapping, rows are ProjectedRows sharing one Shape and scalars keep their native JSON types
+// (numbers stay Integer/Long/Double, booleans stay Boolean) instead of being turned into Strings.
+public class RowProjector {
+    private static final Map<List<String>, RowProjector> compiled = new ConcurrentHashMap<>();
+
+    private final Shape shape;
+    // _source field -> slots of the columns reading it
+    private final Map<String, int[]> fieldSlots;
+    private final String[] dataFields;
+    private final String key;
+
+    // Column names and their positions, shared by every row of a projector
+    static final class Shape implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] names;
+        private final Map<String, Integer> slots = new HashMap<>();
+
+        Shape(String[] names) {
+            this.names = names;
+            for (int i = 0; i < names.length; i++) {
+                slots.put(names[i], i);
+            }
+        }
+
+        int slotOf(Object name) {
+            Integer slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+
+        String nameOf(int slot) {
+            return names[slot];
+        }
+
+        int size() {
+            return names.length;
+        }
+    }
+
+    private RowProjector(List<String> key, String[][] properties) {
+        this.key = key.toString();
+        String[] names = new String[properties.length];
+        dataFields = new String[properties.length];
+        Map<String, List<Integer>> slots = new HashMap<>();
+        for (int i = 0; i < properties.length; i++) {
+            names[i] = properties[i][0];
+            dataFields[i] = properties[i][1];
+            slots.computeIfAbsent(properties[i][1], k -> new ArrayList<>()).add(i);
+        }
+        shape = new Shape(names);
+        fieldSlots = new HashMap<>();
+        for (var entry: slots.entrySet()) {
+            fieldSlots.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    // Projectors are compiled once per distinct properties mapping
+    public static RowProjector of(String[][] properties) {
+        List<String> key = new ArrayList<>(properties.length * 2);
+        for (String[] prop: properties) {
+            key.add(prop[0]);
+            key.add(prop[1]);
+        }
+        return compiled.computeIfAbsent(key, k -> new RowProjector(k, properties));
+    }
+
+    // The properties mapping this projector was compiled from, flattened
+    public String getKey() {
+        return key;
+    }
+
+    public Set<String> getDataFields() {
+        return fieldSlots.keySet();
+    }
+
+    // Row with every column null, for hits without _source
+    public ProjectedRow emptyRow() {
+        return new ProjectedRow(shape, new Object[shape.size()]);
+    }
+
+    // Project the _source object the reader is positioned at, unused fields are skipped undecoded
+    public ProjectedRow project(JsonReader reader) throws IOException {
+        Object[] values = new Object[shape.size()];
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int[] slots = fieldSlots.get(reader.nextName());
+            if (slots == null) {
+                reader.skipValue();
+                continue;
+            }
+            Object value = readValue(reader);
+            for (int slot: slots) {
+                values[slot] = value;
+            }
+        }
+        reader.endObject();
+        return new ProjectedRow(shape, values);
+    }
+
+    public ProjectedRow project(JsonObject source) {
+        Object[] values = new Object[shape.size()];
+        for (int i = 0; i < dataFields.length; i++) {
+            values[i] = toValue(source.get(dataFields[i]));
+        }
+        return new ProjectedRow(shape, values);
+    }
+
+    static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                Map<String, Object> object = new HashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                List<Object> array = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.add(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            case NUMBER:
+                return toNumber(reader.nextString());
+            default:
+                return reader.nextString();
+        }
+    }
+
+    static Object toValue(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        } else if (element.isJsonObject()) {
+            Map<String, Object> object = new HashMap<>();
+            for (var entry: element.getAsJsonObject().entrySet()) {
+                object.put(entry.getKey(), toValue(entry.getValue()));
+            }
+            return object;
+        } else if (element.isJsonArray()) {
+            List<Object> array = new ArrayList<>();
+            for (JsonElement entry: element.getAsJsonArray()) {
+                array.add(toValue(entry));
+            }
+            return array;
+        }
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        } else if (primitive.isNumber()) {
+            return toNumber(primitive.getAsString());
+        }
+        return primitive.getAsString();
+    }
+
+    // Integral numbers become Integer or Long, everything else Double
+    static Number toNumber(String text) {
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(text);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                // Larger than a long, fall through to double
+            }
+        }
+        return Double.parseDouble(text);
+    }
+}
@@ -0,0 +1,26 @@
+package gov.nih.nci.bento_ri.service;
+
+import java.util.Map;
+
+// Body of a search that writes itself with a QueryWriter
+public interface SearchBody {
+    void writeTo(QueryWriter writer);
+
+    // size 0 searches only compute aggregations/counts and can be served from the shard request cache
+    boolean isAggregationOnly();
+
+    // Body given as a Map tree, written in canonical form
+    static SearchBody of(Map<String, Object> query) {
+        return new SearchBody() {
+            @Override
+            public void writeTo(QueryWriter writer) {
+                writer.canonical(query);
+            }
+
+            @Override
+            public boolean isAggregationOnly() {
+                return InsESService.isAggregationOnly(query);
+            }
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// The parts of a search response that SearchResponseDecoder extracted while streaming over it
+public class SearchPage {
+    private final List<Map<String, Object>> rows = new ArrayList<>();
+    private final JsonObject aggregations = new JsonObject();
+    private int hitCount;
+    private long total = -1;
+    private long took = -1;
+    private String scrollId;
+    private JsonArray lastSort;
+
+    void addRow(Map<String, Object> row) {
+        rows.add(row);
+    }
+
+    void addAggregation(String name, JsonObject aggregation) {
+        aggregations.add(name, aggregation);
+    }
+
+    void countHit(JsonArray sort) {
+        hitCount++;
+        if (sort != null) {
+            lastSort = sort;
+        }
+    }
+
+    void setTotal(long total) {
+        this.total = total;
+    }
+
+    void setTook(long took) {
+        this.took = took;
+    }
+
+    void setScrollId(String scrollId) {
+        this.scrollId = scrollId;
+    }
+
+    // Decoded rows, the skipped hits are not part of it
+    public List<Map<String, Object>> getRows() {
+        return rows;
+    }
+
+    // Requested aggregations only, keyed by aggregation name
+    public JsonObject getAggregations() {
+        return aggregations;
+    }
+
+    // Number of hits in the response, including skipped ones
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    // hits.total.value or -1 if the response didn't track it
+    public long getTotal() {
+        return total;
+    }
+
+    // took in ms as Elasticsearch reported it, -1 if the response didn't carry it
+    public long getTook() {
+        return took;
+    }
+
+    public String getScrollId() {
+        return scrollId;
+    }
+
+    // Sort values of the last hit in the response, null if the search was not sorted
+    public JsonArray getLastSort() {
+        return lastSort;
+    }
+}
@@ -0,0 +1,140 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Pull parser for search responses. It reads the response entity stream directly and only materializes
+// the _source fields listed in properties and the named aggregations, everything else is skipped token by
+// token, so no response String or full JSON tree is ever built.
+public class SearchResponseDecoder {
+    private final RowProjector projector;
+    private final Set<String> aggregationNames;
+    private final int skip;
+    private final int limit;
+
+    // properties: {propName, dataField} pairs, skip: hits to pass over without decoding, limit: max rows
+    public SearchResponseDecoder(String[][] properties, int skip, int limit) {
+        this(properties, Set.of(), skip, limit);
+    }
+
+    public SearchResponseDecoder(String[][] properties, Set<String> aggregationNames, int skip, int limit) {
+        this.projector = RowProjector.of(properties);
+        this.aggregationNames = aggregationNames;
+        this.skip = skip;
+        this.limit = limit;
+    }
+
+    // Identifies what this decoder extracts: decoders with equal keys decode a response into equal pages
+    public String getKey() {
+        return projector.getKey() + new TreeSet<>(aggregationNames) + "[" + skip + "," + limit + "]";
+    }
+
+    public SearchPage decode(InputStream content) throws IOException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(content, StandardCharsets.UTF_8))) {
+            SearchPage page = new SearchPage();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "_scroll_id":
+                        page.setScrollId(reader.nextString());
+                        break;
+                    case "took":
+                        page.setTook(reader.nextLong());
+                        break;
+                    case "hits":
+                        readHits(reader, page);
+                        break;
+                    case "aggregations":
+                        readAggregations(reader, page);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return page;
+        }
+    }
+
+    private void readHits(JsonReader reader, SearchPage page) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "total":
+                    readTotal(reader, page);
+                    break;
+                case "hits":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        int position = page.getHitCount();
+                        boolean decode = position >= skip && page.getRows().size() < limit;
+                        readHit(reader, page, decode);
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readTotal(JsonReader reader, SearchPage page) throws IOException {
+        // Object {"value": n, "relation": "eq"} since ES 7, plain number before
+        if (reader.peek() == JsonToken.NUMBER) {
+            page.setTotal(reader.nextLong());
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("value")) {
+                page.setTotal(reader.nextLong());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readHit(JsonReader reader, SearchPage page, boolean decode) throws IOException {
+        Map<String, Object> row = null;
+        JsonArray sort = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (decode && name.equals("_source")) {
+                row = projector.project(reader);
+            } else if (name.equals("sort")) {
+                sort = JsonParser.parseReader(reader).getAsJsonArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (decode) {
+            page.addRow(row != null ? row : projector.emptyRow());
+        }
+        page.countHit(sort);
+    }
+
+    private void readAggregations(JsonReader reader, SearchPage page) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (aggregationNames.contains(name)) {
+                page.addAggregation(name, JsonParser.parseReader(reader).getAsJsonObject());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
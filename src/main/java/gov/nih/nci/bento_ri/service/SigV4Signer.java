@@ -0,0 +1,203 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSSessionCredentials;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/*
+    AWS Signature Version 4 for Elasticsearch requests. Only host, x-amz-date and, for temporary
+    credentials, x-amz-security-token are signed, which is all SigV4 requires. The signing key is derived
+    once per day and secret key instead of four HMACs per request, Mac and MessageDigest instances are reused
+    per thread, and the payload is hashed straight from the caller's bytes.
+    The canonical path is encoded twice, as AWS4Signer does for every service but S3.
+ */
+public class SigV4Signer {
+    static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(SigV4Signer::newDigest);
+    private static final String EMPTY_PAYLOAD_HASH = hex(sha256(new byte[0]));
+
+    private final String serviceName;
+    private final String region;
+    private volatile SigningKey signingKey;
+
+    private record SigningKey(String date, String secretKey, byte[] key) {
+    }
+
+    // Headers to add to a signed request
+    public record Signature(String amzDate, String authorization, String securityToken) {
+    }
+
+    public SigV4Signer(String serviceName, String region) {
+        this.serviceName = serviceName;
+        this.region = region;
+    }
+
+    // SHA-256 hex of a payload, an empty payload when payload is null
+    public static String payloadHash(PayloadWriter payload) throws IOException {
+        if (payload == null) {
+            return EMPTY_PAYLOAD_HASH;
+        }
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        payload.writeTo(new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        });
+        return hex(digest.digest());
+    }
+
+    // Writes the request body, e.g. HttpEntity::writeTo, which hands over a ByteArrayEntity's bytes without a copy
+    public interface PayloadWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // rawPath and rawQuery as they are sent, i.e. already percent-encoded; rawQuery may be null
+    public Signature sign(String method, String host, String rawPath, String rawQuery, String payloadHash,
+                          AWSCredentials credentials, Instant now) {
+        String amzDate = AMZ_DATE.format(now);
+        String date = amzDate.substring(0, 8);
+        String securityToken = credentials instanceof AWSSessionCredentials ? ((AWSSessionCredentials) credentials).getSessionToken() : null;
+
+        StringBuilder canonical = new StringBuilder(256);
+        canonical.append(method).append('\n');
+        appendEncoded(canonical, rawPath == null || rawPath.isEmpty() ? "/" : rawPath, false);
+        canonical.append('\n');
+        appendCanonicalQuery(canonical, rawQuery);
+        canonical.append('\n');
+        canonical.append("host:").append(host.trim()).append('\n');
+        canonical.append("x-amz-date:").append(amzDate).append('\n');
+        String signedHeaders = "host;x-amz-date";
+        if (securityToken != null) {
+            canonical.append("x-amz-security-token:").append(securityToken.trim()).append('\n');
+            signedHeaders += ";x-amz-security-token";
+        }
+        canonical.append('\n').append(signedHeaders).append('\n').append(payloadHash);
+
+        String scope = date + "/" + region + "/" + serviceName + "/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + hex(sha256(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        String signature = hex(hmac(signingKey(date, credentials.getAWSSecretKey()), stringToSign));
+
+        String authorization = ALGORITHM + " Credential=" + credentials.getAWSAccessKeyId() + "/" + scope
+                + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+        return new Signature(amzDate, authorization, securityToken);
+    }
+
+    private byte[] signingKey(String date, String secretKey) {
+        SigningKey current = signingKey;
+        if (current != null && current.date().equals(date) && current.secretKey().equals(secretKey)) {
+            return current.key();
+        }
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, serviceName);
+        key = hmac(key, "aws4_request");
+        signingKey = new SigningKey(date, secretKey, key);
+        return key;
+    }
+
+    // Parameters sorted by encoded name, then encoded value
+    private static void appendCanonicalQuery(StringBuilder canonical, String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return;
+        }
+        List<String[]> parameters = new ArrayList<>();
+        for (String parameter: rawQuery.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            StringBuilder encodedName = new StringBuilder();
+            appendEncoded(encodedName, URLDecoder.decode(name, StandardCharsets.UTF_8), true);
+            StringBuilder encodedValue = new StringBuilder();
+            appendEncoded(encodedValue, URLDecoder.decode(value, StandardCharsets.UTF_8), true);
+            parameters.add(new String[]{encodedName.toString(), encodedValue.toString()});
+        }
+        parameters.sort(Comparator.<String[], String>comparing(p -> p[0]).thenComparing(p -> p[1]));
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0) {
+                canonical.append('&');
+            }
+            canonical.append(parameters.get(i)[0]).append('=').append(parameters.get(i)[1]);
+        }
+    }
+
+    // RFC 3986 percent-encoding of everything but unreserved characters, and of '/' unless in a path
+    private static void appendEncoded(StringBuilder out, String value, boolean encodeSlash) {
+        for (byte b: value.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                out.append((char) c);
+            } else {
+                out.append('%').append((char) Character.toUpperCase(HEX[c >> 4])).append((char) Character.toUpperCase(HEX[c & 0xF]));
+            }
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        Mac mac = MACS.get();
+        try {
+            mac.init(new SecretKeySpec(key, HMAC));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sha256(byte[] data) {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return digest.digest(data);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        byte[] chars = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars, StandardCharsets.US_ASCII);
+    }
+}
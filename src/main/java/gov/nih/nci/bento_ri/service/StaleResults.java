@@ -0,0 +1,84 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Last good result of each key of the resolvers in es.stale.resolvers. Unlike ResultCache entries these
+// survive new index versions, so they can still be served while the circuit breaker keeps requests away
+// from Elasticsearch. Results older than es.stale.max_age_ms are not served.
+@Component
+public class StaleResults {
+    private final boolean enabled;
+    private final Set<String> resolvers;
+    private final Cache<String, Entry> entries;
+    private final CircuitBreaker circuitBreaker;
+    private final LongAdder served = new LongAdder();
+
+    private record Entry(Object value, long storedAt) {
+    }
+
+    // A resolver result, staleMs is the age of a stale result served in place of a failed one, -1 if fresh
+    public record Result<T>(T value, long staleMs) {
+        public static <T> Result<T> fresh(T value) {
+            return new Result<>(value, -1);
+        }
+
+        public boolean isStale() {
+            return staleMs >= 0;
+        }
+    }
+
+    public StaleResults(@Value("${es.stale.enabled:true}") boolean enabled,
+                        @Value("${es.stale.resolvers:searchProjects,grantsOverview,programsOverview,projectsOverview,publicationsOverview}") Set<String> resolvers,
+                        @Value("${es.stale.max_entries:10000}") long maxEntries,
+                        @Value("${es.stale.max_age_ms:86400000}") long maxAgeMs,
+                        CircuitBreaker circuitBreaker) {
+        this.enabled = enabled;
+        this.resolvers = resolvers;
+        this.circuitBreaker = circuitBreaker;
+        this.entries = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(maxAgeMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    // Completes with the result, which is kept for key. If it fails while the circuit breaker is open (or
+    // the failure opened it), the last good result of key is served instead when there is one.
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<Result<T>> withFallback(String resolver, String key, CompletableFuture<T> result) {
+        if (!enabled || !resolvers.contains(resolver)) {
+            return result.thenApply(Result::fresh);
+        }
+        String entryKey = resolver + ":" + key;
+        return result.handle((value, error) -> {
+            if (error == null) {
+                entries.put(entryKey, new Entry(value, System.currentTimeMillis()));
+                return Result.fresh(value);
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            Entry entry = cause instanceof CircuitOpenException || !circuitBreaker.isClosed() ? entries.getIfPresent(entryKey) : null;
+            if (entry == null) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            served.increment();
+            return new Result<>((T) entry.value(), System.currentTimeMillis() - entry.storedAt());
+        });
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> values = new TreeMap<>();
+        values.put("entries", entries.estimatedSize());
+        values.put("served", served.sum());
+        return values;
+    }
+}
@@ -0,0 +1,88 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CanonicalJsonTest {
+
+    private static Map<String, Object> orderedMap(Object... keysAndValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    private static Set<Object> orderedSet(Object... values) {
+        return new LinkedHashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void permutedQueries_Test() {
+        Map<String, Object> query = orderedMap(
+            "size", 0,
+            "query", orderedMap("bool", orderedMap("filter", List.of(
+                orderedMap("terms", orderedMap("focus_area", List.of("b", "a", "c"))),
+                orderedMap("range", orderedMap("fiscal_year", orderedMap("gte", 2000, "lte", 2010)))
+            ))),
+            "aggs", orderedMap(
+                "rcr", orderedMap("range", orderedMap("field", "relative_citation_ratio", "ranges", orderedSet(
+                    orderedMap("key", "< 0.2", "from", 0, "to", 0.2),
+                    orderedMap("key", "> 5", "from", 5)
+                ))),
+                "focus_area", orderedMap("terms", orderedMap("field", "focus_area", "size", 100000))
+            )
+        );
+        Map<String, Object> permuted = orderedMap(
+            "aggs", orderedMap(
+                "focus_area", orderedMap("terms", orderedMap("size", 100000, "field", "focus_area")),
+                "rcr", orderedMap("range", orderedMap("ranges", orderedSet(
+                    orderedMap("from", 5, "key", "> 5"),
+                    orderedMap("to", 0.2, "from", 0, "key", "< 0.2")
+                ), "field", "relative_citation_ratio"))
+            ),
+            "query", orderedMap("bool", orderedMap("filter", List.of(
+                orderedMap("terms", orderedMap("focus_area", List.of("c", "a", "b"))),
+                orderedMap("range", orderedMap("fiscal_year", orderedMap("lte", 2010, "gte", 2000)))
+            ))),
+            "size", 0
+        );
+
+        assertThat(CanonicalJson.toJson(permuted), is(CanonicalJson.toJson(query)));
+        assertThat(Arrays.equals(CanonicalJson.toJson(permuted).getBytes(), CanonicalJson.toJson(query).getBytes()), is(true));
+    }
+
+    @Test
+    public void keysAndTermValuesSorted_Test() {
+        Map<String, Object> query = orderedMap(
+            "size", 0,
+            "query", orderedMap("terms", orderedMap("program_id", List.of("p2", "p10", "p1")))
+        );
+        assertThat(CanonicalJson.toJson(query), is("{\"query\":{\"terms\":{\"program_id\":[\"p1\",\"p10\",\"p2\"]}},\"size\":0}"));
+    }
+
+    @Test
+    public void orderedListsKept_Test() {
+        Map<String, Object> query = orderedMap(
+            "sort", List.of(orderedMap("grant_title.sort", "desc"), orderedMap("grant_id.sort", "asc")),
+            "search_after", List.of("z", "a"),
+            "aggs", orderedMap("ids", orderedMap("terms", orderedMap("field", "program_id",
+                "order", List.of(orderedMap("_count", "desc"), orderedMap("_key", "asc")))))
+        );
+        assertThat(CanonicalJson.toJson(query), is("{\"aggs\":{\"ids\":{\"terms\":{\"field\":\"program_id\","
+            + "\"order\":[{\"_count\":\"desc\"},{\"_key\":\"asc\"}]}}},"
+            + "\"search_after\":[\"z\",\"a\"],"
+            + "\"sort\":[{\"grant_title.sort\":\"desc\"},{\"grant_id.sort\":\"asc\"}]}"));
+    }
+
+    @Test
+    public void aggregationOnly_Test() {
+        assertThat(InsESService.isAggregationOnly(Map.of("size", 0, "aggs", Map.of())), is(true));
+        assertThat(InsESService.isAggregationOnly(Map.of("size", 10)), is(false));
+        assertThat(InsESService.isAggregationOnly(Map.of("query", Map.of())), is(false));
+    }
+}
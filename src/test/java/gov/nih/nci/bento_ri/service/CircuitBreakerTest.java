@@ -0,0 +1,85 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static void call(CircuitBreaker breaker, Throwable error) throws CircuitOpenException {
+        breaker.acquire().complete(error);
+    }
+
+    private static void assertRejected(CircuitBreaker breaker) {
+        try {
+            breaker.acquire();
+            fail();
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void opensOnFailureRate_Test() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(true, 10, 10, 50, 10000, 80, 60000, 2, 0);
+        for (int i = 0; i < 5; i++) {
+            call(breaker, null);
+        }
+        for (int i = 0; i < 4; i++) {
+            call(breaker, new IOException("Connection refused"));
+        }
+        // not enough calls yet
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        call(breaker, new IOException("Connection refused"));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertRejected(breaker);
+    }
+
+    @Test
+    public void probesCloseAndFailedProbeReopens_Test() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(true, 4, 4, 50, 10000, 80, 0, 2, 0);
+        for (int i = 0; i < 4; i++) {
+            call(breaker, new IOException("Connection refused"));
+        }
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+
+        // open_ms 0: the next request is a probe, only probe_calls of them are let through
+        CircuitBreaker.Call first = breaker.acquire();
+        CircuitBreaker.Call second = breaker.acquire();
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertRejected(breaker);
+        first.complete(null);
+        second.complete(new IOException("Read timed out"));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+
+        call(breaker, null);
+        call(breaker, null);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void rampUpLimitsConcurrencyInsteadOfRejecting_Test() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(true, 4, 4, 50, 10000, 80, 0, 1, 60000);
+        for (int i = 0; i < 4; i++) {
+            call(breaker, new IOException("Connection refused"));
+        }
+        call(breaker, null);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        // Every request is let through, the limiters run at a tenth of their limit
+        for (int i = 0; i < 100; i++) {
+            call(breaker, null);
+        }
+        assertThat(breaker.stats().get("rejected"), is(0L));
+        assertThat(breaker.rampShare(), greaterThan(0.09));
+        assertThat(breaker.rampShare(), lessThan(0.2));
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("interactive", 20, 100, 10, 1000, 2000, breaker::rampShare);
+        assertThat(limiter.stats().get("effective_limit"), is(2L));
+    }
+}
@@ -0,0 +1,151 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+
+    private static ConcurrencyLimiter limiter(int limit, int queueSize, long queueTimeoutMs, long latencyMs) {
+        return new ConcurrencyLimiter("test", limit, 10, queueSize, queueTimeoutMs, latencyMs, () -> 1);
+    }
+
+    private static ConcurrencyLimiter.Permit granted(CompletableFuture<ConcurrencyLimiter.Permit> permit) throws Exception {
+        assertThat(permit.isDone(), is(true));
+        return permit.get();
+    }
+
+    private static void assertFails(CompletableFuture<ConcurrencyLimiter.Permit> permit, String message) throws Exception {
+        try {
+            permit.get(5, TimeUnit.SECONDS);
+            fail("Permit granted");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+            assertThat(e.getCause().getMessage(), containsString(message));
+        }
+    }
+
+    @Test
+    public void limitGrowsOnlyWhileInUse_Test() throws Exception {
+        ConcurrencyLimiter limiter = limiter(4, 10, 1000, 10000);
+        // One request at a time leaves the limit alone
+        for (int i = 0; i < 20; i++) {
+            granted(limiter.acquire()).release(null);
+        }
+        assertThat(limiter.stats().get("limit"), is(4L));
+
+        List<ConcurrencyLimiter.Permit> held = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            held.add(granted(limiter.acquire()));
+        }
+        for (int i = 0; i < 10; i++) {
+            granted(limiter.acquire()).release(null);
+        }
+        assertThat(limiter.stats().get("limit"), greaterThan(4L));
+        // The new slot can be used right away
+        held.add(granted(limiter.acquire()));
+        held.add(granted(limiter.acquire()));
+        assertThat(limiter.stats().get("in_flight"), is(5L));
+    }
+
+    @Test
+    public void limitBacksOffOnOverloadAndSlowCalls_Test() throws Exception {
+        ConcurrencyLimiter limiter = limiter(4, 10, 1000, 10000);
+        granted(limiter.acquire()).release(new SocketTimeoutException("Read timed out"));
+        assertThat(limiter.stats().get("limit"), is(3L));
+        // Errors that say nothing about the load neither grow nor shrink it
+        granted(limiter.acquire()).release(new IOException("Connection refused"));
+        assertThat(limiter.stats().get("limit"), is(3L));
+
+        ConcurrencyLimiter slow = limiter(4, 10, 1000, 1);
+        ConcurrencyLimiter.Permit permit = granted(slow.acquire());
+        Thread.sleep(5);
+        permit.release(null);
+        assertThat(slow.stats().get("limit"), is(3L));
+        for (int i = 0; i < 50; i++) {
+            permit = granted(slow.acquire());
+            Thread.sleep(2);
+            permit.release(null);
+        }
+        // Never below one
+        assertThat(slow.stats().get("limit"), is(1L));
+        assertThat(slow.stats().get("effective_limit"), is(1L));
+    }
+
+    @Test
+    public void waitersAreRejectedWhenQueueIsFullOrAfterTimeout_Test() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 2, 50, 10000);
+        ConcurrencyLimiter.Permit permit = granted(limiter.acquire());
+        CompletableFuture<ConcurrencyLimiter.Permit> first = limiter.acquire();
+        CompletableFuture<ConcurrencyLimiter.Permit> second = limiter.acquire();
+        assertThat(first.isDone(), is(false));
+        assertFails(limiter.acquire(), "request rejected");
+        assertThat(limiter.stats().get("rejected"), is(1L));
+
+        assertFails(first, "Waited more than 50ms");
+        assertFails(second, "Waited more than 50ms");
+        assertThat(limiter.stats().get("timed_out"), is(2L));
+        assertThat(limiter.stats().get("queued"), is(0L));
+        // The slot is still there for the next request once released
+        permit.release(null);
+        granted(limiter.acquire()).release(null);
+        assertThat(limiter.stats().get("in_flight"), is(0L));
+    }
+
+    @Test
+    public void unusedAndCancelledPermitsHandTheSlotOn_Test() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 10, 5000, 10000);
+        ConcurrencyLimiter.Permit permit = granted(limiter.acquire());
+        CompletableFuture<ConcurrencyLimiter.Permit> cancelled = limiter.acquire();
+        CompletableFuture<ConcurrencyLimiter.Permit> waiting = limiter.acquire();
+        cancelled.cancel(false);
+
+        // E.g. the losing attempt of a hedged request: the next live waiter gets the slot, the limit stays
+        permit.releaseUnused();
+        ConcurrencyLimiter.Permit next = granted(waiting);
+        assertThat(limiter.stats().get("limit"), is(1L));
+        assertThat(limiter.stats().get("in_flight"), is(1L));
+        // Released more than once counts once
+        permit.release(new SocketTimeoutException("Read timed out"));
+        assertThat(limiter.stats().get("limit"), is(1L));
+        assertThat(limiter.stats().get("in_flight"), is(1L));
+        next.release(null);
+        assertThat(limiter.stats().get("in_flight"), is(0L));
+        assertThat(limiter.stats().get("queued"), is(0L));
+    }
+
+    @Test
+    public void bulkRequestsDontTakeInteractiveSlots_Test() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(false, 100, 20, 50, 10000, 80, 60000, 2, 0);
+        Bulkheads bulkheads = new Bulkheads(true, 2, 10, 0, 1000, 10000, 1, 10, 0, 1000, 10000, breaker);
+        ConcurrencyLimiter bulk = bulkheads.forSize(Bulkheads.BULK_SIZE);
+        assertThat(bulkheads.forSize(10), is(bulkheads.interactive()));
+
+        ConcurrencyLimiter.Permit export = granted(bulk.acquire());
+        assertFails(bulk.acquire(), "(bulk), request rejected");
+        ConcurrencyLimiter.Permit first = granted(bulkheads.interactive().acquire());
+        ConcurrencyLimiter.Permit second = granted(bulkheads.interactive().acquire());
+        assertFails(bulkheads.interactive().acquire(), "(interactive), request rejected");
+
+        assertThat(bulkheads.stats().get("bulk").get("in_flight"), is(1L));
+        assertThat(bulkheads.stats().get("interactive").get("in_flight"), is(2L));
+        assertThat(bulkheads.stats().get("bulk").get("rejected"), is(1L));
+        assertThat(bulkheads.stats().get("interactive").get("rejected"), is(1L));
+        export.release(null);
+        first.release(null);
+        second.release(null);
+    }
+}
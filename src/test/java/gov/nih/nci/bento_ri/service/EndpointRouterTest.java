@@ -0,0 +1,121 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensearch.client.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class EndpointRouterTest {
+    private HttpServer fast;
+    private HttpServer slow;
+    private volatile int fastStatus = 200;
+    private volatile long slowDelayMs = 30;
+    private RestClientFactory clientFactory;
+    private EndpointRouter router;
+
+    // Answers {} after delayMs with the status returned by status
+    private static HttpServer stub(LongSupplier delayMs, IntSupplier status) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMs.getAsLong());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status.getAsInt(), body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Before
+    public void start() throws IOException {
+        fast = stub(() -> 0, () -> fastStatus);
+        slow = stub(() -> slowDelayMs, () -> 200);
+        clientFactory = new RestClientFactory(10, 10, 60000, 0, 1, 1000, 5000, false, 0, "es", "us-east-1", 300000L, false);
+        router = new EndpointRouter(List.of(url(fast) + "=1", url(slow) + "=1"), "http://localhost:9200", 10000, 3, 60000, 300000, clientFactory);
+    }
+
+    @After
+    public void stop() {
+        fast.stop(0);
+        slow.stop(0);
+    }
+
+    private void send(int requests) {
+        for (int i = 0; i < requests; i++) {
+            EndpointRouter.Call call = router.start();
+            try {
+                call.client().performRequest(new Request("GET", "/"));
+                call.complete(null);
+            } catch (IOException | RuntimeException e) {
+                call.complete(e);
+            }
+        }
+    }
+
+    private long stat(HttpServer server, String name) {
+        Map<String, Long> values = router.stats().get(url(server));
+        return values.get(name);
+    }
+
+    @Test
+    public void fasterEndpointGetsMostRequests_Test() {
+        // Far apart, so a hiccup of the fast endpoint on a busy machine doesn't make it look the slower one
+        slowDelayMs = 200;
+        send(100);
+        assertThat(stat(fast, "requests") + stat(slow, "requests"), is(100L));
+        assertThat(stat(fast, "requests"), greaterThan(90L));
+        assertThat(stat(slow, "latency_ms"), greaterThan(stat(fast, "latency_ms")));
+    }
+
+    @Test
+    public void failingEndpointIsEjected_Test() throws IOException {
+        // The slow endpoint on standby: it only gets requests once the other one is ejected, after 3
+        // failures in a row, for longer than the test runs
+        router = new EndpointRouter(List.of(url(fast) + "=1", url(slow) + "=0"), "http://localhost:9200", 10000, 3, 60000, 300000, clientFactory);
+        fastStatus = 503;
+        send(100);
+        assertThat(stat(fast, "requests"), is(3L));
+        assertThat(stat(fast, "failures"), is(3L));
+        assertThat(stat(fast, "ejected"), is(1L));
+        assertThat(stat(slow, "requests"), is(97L));
+    }
+
+    @Test
+    public void pinnedRequestsIgnoreRouting_Test() throws IOException {
+        EndpointRouter.Endpoint endpoint = router.getEndpoints().get(1);
+        assertThat(endpoint.getName(), is(url(slow)));
+        router.callOn(endpoint, () -> {
+            send(20);
+            return null;
+        });
+        assertThat(stat(slow, "requests"), is(20L));
+        assertThat(stat(fast, "requests"), is(0L));
+    }
+}
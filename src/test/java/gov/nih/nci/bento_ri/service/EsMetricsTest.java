@@ -0,0 +1,79 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+import org.opensearch.client.Request;
+
+import java.net.SocketTimeoutException;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class EsMetricsTest {
+
+    private static Request search(String endpoint, boolean aggregationOnly) {
+        Request request = new Request("GET", endpoint);
+        if (aggregationOnly) {
+            request.addParameter(InsESService.REQUEST_CACHE, "true");
+        }
+        return request;
+    }
+
+    @Test
+    public void queriesAreKeyedByIndexAndKind_Test() {
+        assertThat(EsMetrics.indexOf(search("/faceted_projects/_search", true)), is("faceted_projects"));
+        assertThat(EsMetrics.queryOf(search("/faceted_projects/_search", true)), is(EsMetrics.AGGREGATIONS));
+        assertThat(EsMetrics.queryOf(search("/publications/_search", false)), is(EsMetrics.SEARCH));
+        assertThat(EsMetrics.queryOf(new Request("GET", "/grants/_count")), is("count"));
+        assertThat(EsMetrics.indexOf(new Request("GET", InsESService.MSEARCH_ENDPOINT)), is(EsMetrics.ALL_INDICES));
+        assertThat(EsMetrics.queryOf(new Request("GET", InsESService.SEARCH_ENDPOINT)), is("pit_search"));
+        assertThat(EsMetrics.queryOf(new Request("POST", "/grants" + InsESService.PIT_ENDPOINT)), is("point_in_time"));
+    }
+
+    @Test
+    public void searchResponsesAreRecorded_Test() {
+        EsMetrics metrics = new EsMetrics(true);
+        Request request = search("/faceted_projects/_search", true);
+        JsonObject response = JsonParser.parseString("{\"took\": 37, \"hits\": {\"hits\": []}, \"aggregations\": {"
+                + "\"programs\": {\"buckets\": [{\"key\": \"a\", \"doc_count\": 1}, {\"key\": \"b\", \"doc_count\": 2}]},"
+                + "\"years\": {\"buckets\": [{\"key\": 2020, \"sub\": {\"buckets\": [{\"key\": \"x\"}]}}]}}}").getAsJsonObject();
+        metrics.recordSearch(request, response);
+        metrics.recordCall(request, null, new SocketTimeoutException("Read timed out"), 5_000_000_000L);
+
+        Map<String, Object> values = metrics.snapshot().get("faceted_projects").get(EsMetrics.AGGREGATIONS);
+        assertThat(values.get("responses"), is(1L));
+        assertThat(values.get("buckets"), is(4L));
+        assertThat(values.get("hits"), is(0L));
+        assertThat(((Map<?, ?>) values.get("took_ms")).get("max_ms"), is(37L));
+        assertThat(values.get("requests"), is(1L));
+        assertThat(((Map<?, ?>) values.get("errors")).get("SocketTimeoutException"), is(1L));
+        assertThat(((Map<?, ?>) values.get("latency_ms")).get("le_5000"), is(1L));
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled_Test() {
+        EsMetrics metrics = new EsMetrics(false);
+        Request request = search("/publications/_search", false);
+        metrics.recordSearch(request, JsonParser.parseString("{\"took\": 5}").getAsJsonObject());
+        metrics.recordCall(request, null, null, 1_000_000L);
+        assertThat(metrics.snapshot().isEmpty(), is(true));
+    }
+
+    @Test
+    public void histogramPercentiles_Test() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Map<String, Long> values = histogram.snapshot();
+        assertThat(values.get("count"), is(100L));
+        assertThat(values.get("sum_ms"), is(5050L));
+        assertThat(values.get("max_ms"), is(100L));
+        assertThat(values.get("p50_ms"), is(50L));
+        assertThat(values.get("p95_ms"), is(100L));
+        assertThat(values.get("le_1"), is(1L));
+        assertThat(values.get("le_inf"), is(0L));
+    }
+}
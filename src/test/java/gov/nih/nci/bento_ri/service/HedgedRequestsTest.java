@@ -0,0 +1,92 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HedgedRequestsTest {
+
+    // Records latencies of about 1ms until the hedge delay is known
+    private static void warmUp(HedgedRequests hedgedRequests, int samples) throws Exception {
+        for (int i = 0; i < samples; i++) {
+            hedgedRequests.execute(() -> CompletableFuture.supplyAsync(() -> "fast",
+                    CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS))).get();
+        }
+    }
+
+    // The thread completing the result may still be running its other dependents when get returns
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void slowAttemptIsHedged_Test() throws Exception {
+        HedgedRequests hedgedRequests = new HedgedRequests(true, 100, 10);
+        warmUp(hedgedRequests, 10);
+
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        CompletableFuture<String> result = hedgedRequests.execute(() -> {
+            CompletableFuture<String> attempt = new CompletableFuture<>();
+            attempts.add(attempt);
+            if (attempts.size() == 2) {
+                attempt.complete("hedge");
+            }
+            return attempt;
+        });
+
+        assertThat(result.get(5, TimeUnit.SECONDS), is("hedge"));
+        assertThat(attempts.size(), is(2));
+        // The slow first attempt is given up
+        waitFor(() -> attempts.get(0).isCancelled() && hedgedRequests.stats().get("hedge_wins") == 1L);
+        assertThat(attempts.get(0).isCancelled(), is(true));
+        assertThat(hedgedRequests.stats().get("hedge_wins"), is(1L));
+        // Only the answered hedge is a latency sample, not the cancelled attempt
+        assertThat(hedgedRequests.stats().get("samples"), is(11L));
+    }
+
+    @Test
+    public void noHedgeBeforeMinSamples_Test() throws Exception {
+        HedgedRequests hedgedRequests = new HedgedRequests(true, 100, 1000);
+        warmUp(hedgedRequests, 10);
+
+        List<CompletableFuture<String>> attempts = new ArrayList<>();
+        CompletableFuture<String> result = hedgedRequests.execute(() -> {
+            CompletableFuture<String> attempt = CompletableFuture.supplyAsync(() -> "first",
+                    CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS));
+            attempts.add(attempt);
+            return attempt;
+        });
+
+        assertThat(result.get(5, TimeUnit.SECONDS), is("first"));
+        assertThat(attempts.size(), is(1));
+        assertThat(hedgedRequests.stats().get("hedged"), is(0L));
+    }
+
+    @Test
+    public void failureBeforeHedgeFails_Test() throws Exception {
+        HedgedRequests hedgedRequests = new HedgedRequests(true, 100, 10);
+        warmUp(hedgedRequests, 10);
+
+        CompletableFuture<String> result = hedgedRequests.execute(() -> CompletableFuture.failedFuture(new IOException("Elasticsearch returned code: 500")));
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IOException.class));
+        }
+    }
+}
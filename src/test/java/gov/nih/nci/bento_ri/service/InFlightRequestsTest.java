@@ -0,0 +1,100 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class InFlightRequestsTest {
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Test
+    public void followersShareTheLeadersResult_Test() throws Exception {
+        InFlightRequests inFlightRequests = new InFlightRequests(true);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        Future<String> leader = threads.submit(() -> inFlightRequests.execute("q", () -> {
+            loads.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "result";
+        }));
+        started.await();
+        Future<String> follower = threads.submit(() -> inFlightRequests.execute("q", () -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        CompletableFuture<String> asyncFollower = inFlightRequests.executeAsync("q", () -> CompletableFuture.completedFuture("other"));
+        while (inFlightRequests.stats().get("coalesced") < 2) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        assertThat(leader.get(5, TimeUnit.SECONDS), is("result"));
+        assertThat(follower.get(5, TimeUnit.SECONDS), is("result"));
+        assertThat(asyncFollower.get(5, TimeUnit.SECONDS), is("result"));
+        assertThat(loads.get(), is(1));
+        assertThat(inFlightRequests.stats().get("in_flight"), is(0L));
+        threads.shutdown();
+    }
+
+    @Test
+    public void followersSeeErrorsOfTheLeader_Test() throws Exception {
+        InFlightRequests inFlightRequests = new InFlightRequests(true);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        Future<Object> leader = threads.submit(() -> inFlightRequests.execute("q", () -> {
+            started.countDown();
+            await(release);
+            throw new StackOverflowError("too deep");
+        }));
+        started.await();
+        Future<Object> follower = threads.submit(() -> inFlightRequests.execute("q", () -> "other"));
+        while (inFlightRequests.stats().get("coalesced") < 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        for (Future<Object> caller: new Future[]{leader, follower}) {
+            try {
+                caller.get(5, TimeUnit.SECONDS);
+                fail("Error not passed on");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(StackOverflowError.class));
+            }
+        }
+        assertThat(inFlightRequests.stats().get("in_flight"), is(0L));
+
+        // A loader throwing right away doesn't leave its key behind either
+        CompletableFuture<Object> failed = inFlightRequests.executeAsync("a", () -> {
+            throw new OutOfMemoryError("no memory");
+        });
+        assertThat(failed.isCompletedExceptionally(), is(true));
+        assertThat(inFlightRequests.stats().get("in_flight"), is(0L));
+        try {
+            inFlightRequests.execute("a", () -> {
+                throw new IOException("Connection refused");
+            });
+            fail("Error not passed on");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Connection refused"));
+        }
+        threads.shutdown();
+    }
+}
@@ -0,0 +1,45 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class IndexGenerationsTest {
+    private static final String GRANTS_V1 = "[{\"index\":\"grants_1\",\"uuid\":\"a\",\"docs.count\":\"10\",\"creation.date\":\"1\"}]";
+    private static final String GRANTS_V2 = "[{\"index\":\"grants_2\",\"uuid\":\"b\",\"docs.count\":\"12\",\"creation.date\":\"2\"}]";
+
+    @Test
+    public void noFingerprintUntilAllIndicesAreSeen_Test() {
+        IndexGenerations generations = new IndexGenerations(List.of("grants", "programs"));
+        assertThat(generations.fingerprint(), is(nullValue()));
+        assertThat(generations.version("grants"), is(IndexGenerations.UNKNOWN));
+        generations.update("grants", GRANTS_V1);
+        assertThat(generations.fingerprint(), is(nullValue()));
+        generations.update("programs", "missing");
+        assertThat(generations.fingerprint(), is(not(nullValue())));
+    }
+
+    @Test
+    public void nodesAgreeWhateverTheyHaveSeenBefore_Test() {
+        // One node saw the index before and after its reload, the other one started after it
+        IndexGenerations older = new IndexGenerations(List.of("grants"));
+        older.update("grants", GRANTS_V1);
+        String before = older.fingerprint();
+        List<String> changed = new ArrayList<>();
+        older.addListener(changed::add);
+        older.update("grants", GRANTS_V2);
+        IndexGenerations newer = new IndexGenerations(List.of("grants"));
+        newer.update("grants", GRANTS_V2);
+
+        assertThat(older.fingerprint(), is(newer.fingerprint()));
+        assertThat(older.version("grants"), is(newer.version("grants")));
+        assertThat(older.fingerprint(), is(not(before)));
+        assertThat(changed, is(List.of("grants")));
+    }
+}
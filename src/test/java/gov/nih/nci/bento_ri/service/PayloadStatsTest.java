@@ -0,0 +1,46 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PayloadStatsTest {
+
+    private static InputStream gzip(String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void compressedResponsesAreCountedAsRead_Test() throws IOException {
+        PayloadStats payloadStats = new PayloadStats(true, 1000);
+        String trimmed = "{\"hits\":{\"hits\":[]}}";
+        String full = "{\"took\":3,\"timed_out\":false,\"hits\":{\"total\":{\"value\":0},\"hits\":[]}}";
+        try (InputStream content = payloadStats.counting("/grants/_search", true, gzip(trimmed))) {
+            content.readAllBytes();
+        }
+        // Read only in part, the rest is counted on close
+        try (InputStream content = payloadStats.counting("/grants/_search", false, gzip(full))) {
+            content.read(new byte[10]);
+        }
+
+        Map<String, Long> values = payloadStats.snapshot().get("/grants/_search");
+        assertThat(values.get("trimmed_requests"), is(1L));
+        assertThat(values.get("trimmed_bytes"), is((long) trimmed.length()));
+        assertThat(values.get("baseline_bytes"), is((long) full.length()));
+        assertThat(values.get("estimated_bytes_saved"), is((long) (full.length() - trimmed.length())));
+    }
+}
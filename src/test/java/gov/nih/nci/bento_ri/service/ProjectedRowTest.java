@@ -0,0 +1,69 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class ProjectedRowTest {
+    private static final RowProjector.Shape SHAPE = new RowProjector.Shape(new String[]{"grant_id", "title"});
+
+    private static ProjectedRow row(String id, String title) {
+        return new ProjectedRow(SHAPE, new Object[]{id, title});
+    }
+
+    @Test
+    public void behavesLikeAMutableMap_Test() {
+        ProjectedRow row = row("R01CA1", null);
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("grant_id", "R01CA1");
+        expected.put("title", null);
+        assertThat(row, is(expected));
+        assertThat(row.containsKey("title"), is(true));
+
+        // Keys outside the projection go next to the columns
+        assertThat(row.put("program", "CCDI"), is((Object) null));
+        expected.put("program", "CCDI");
+        assertThat(row.put("title", "Title"), is((Object) null));
+        expected.put("title", "Title");
+        assertThat(row, is(expected));
+        assertThat(new ArrayList<>(row.keySet()), is(List.of("grant_id", "title", "program")));
+
+        assertThat(row.remove("grant_id"), is((Object) "R01CA1"));
+        expected.remove("grant_id");
+        assertThat(row.remove("missing"), is((Object) null));
+        assertThat(row, is(expected));
+        assertThat(row.size(), is(2));
+        assertThat(row.containsKey("grant_id"), is(false));
+
+        row.entrySet().removeIf(entry -> entry.getKey().equals("program"));
+        row.entrySet().forEach(entry -> entry.setValue("New title"));
+        assertThat(row, is(Map.of("title", "New title")));
+
+        row.put("grant_id", "R01CA2");
+        row.putAll(Map.of("year", 2020));
+        assertThat(row, is(Map.of("grant_id", "R01CA2", "title", "New title", "year", 2020)));
+        row.clear();
+        assertThat(row.isEmpty(), is(true));
+    }
+
+    @Test
+    public void rowsWithExtraKeysAreEncodedInFull_Test() throws IOException {
+        ProjectedRow extended = row("R01CA2", "Title");
+        extended.put("program", "CCDI");
+        ProjectedRow trimmed = row("R01CA3", "Title");
+        trimmed.remove("title");
+
+        for (List<Map<String, Object>> rows: List.of(List.<Map<String, Object>>of(row("R01CA1", null), extended),
+                List.<Map<String, Object>>of(row("R01CA1", null), trimmed))) {
+            Object decoded = ResultCodec.decode(ResultCodec.encode(rows));
+            assertThat(decoded, is((Object) rows));
+            assertThat(((List<?>) decoded).get(0), is(not(instanceOf(ProjectedRow.class))));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package gov.nih.nci.bento_ri.service;
+
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class QueryTimingTest {
+    private static final String SCHEMA = "type Row { name: String } "
+            + "type QueryType { rows(first: Int): [Row] count: Int broken: Int } "
+            + "schema { query: QueryType }";
+
+    private static GraphQLSchema schema(QueryTiming queryTiming) {
+        RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+                .type(newTypeWiring("QueryType")
+                        .dataFetcher("rows", env -> CompletableFuture.supplyAsync(() -> List.of(Map.of("name", "a"), Map.of("name", "b"))))
+                        .dataFetcher("count", env -> 2)
+                        .dataFetcher("broken", env -> {
+                            throw new IllegalStateException("broken");
+                        })
+                )
+                .directiveWiring(queryTiming.fieldWiring())
+                .build();
+        return new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse(SCHEMA), wiring);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> field(QueryTiming queryTiming, String coordinate) {
+        return ((Map<String, Map<String, Object>>) queryTiming.snapshot().get("fields")).get(coordinate);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> requests(QueryTiming queryTiming) {
+        return (Map<String, Object>) queryTiming.snapshot().get("requests");
+    }
+
+    @Test
+    public void wiredFetchersAreTimed_Test() {
+        QueryTiming queryTiming = new QueryTiming(true, 0, 100);
+        GraphQL graphQL = GraphQL.newGraphQL(schema(queryTiming)).build();
+        ExecutionResult result = graphQL.execute("query Q { first: rows(first: 2) { name } count ...Broken } fragment Broken on QueryType { broken }");
+        assertThat(result.getErrors().size(), is(1));
+
+        assertThat(field(queryTiming, "QueryType.rows").get("calls"), is(1L));
+        assertThat(field(queryTiming, "QueryType.rows").get("result_size"), is(2L));
+        assertThat(field(queryTiming, "QueryType.count").get("result_size"), is(1L));
+        assertThat(field(queryTiming, "QueryType.broken").get("errors"), is(1L));
+        // Row.name is resolved by a property fetcher
+        assertThat(field(queryTiming, "Row.name"), is(nullValue()));
+        // Reported once all three root fields are resolved
+        Map<String, Object> requests = requests(queryTiming);
+        assertThat(((Map<?, ?>) requests.get("total_ms")).get("count"), is(1L));
+        assertThat(requests.get("slow"), is(1L));
+        assertThat(requests.get("logged"), is(1L));
+    }
+
+    @Test
+    public void slowQueryEntryHidesValues_Test() {
+        QueryTiming queryTiming = new QueryTiming(true, 0, 100);
+        GraphQL graphQL = GraphQL.newGraphQL(schema(queryTiming)).build();
+        ExecutionInput input = ExecutionInput.newExecutionInput("query Q($n: Int) { r: rows(first: $n) { name } count }")
+                .variables(Map.of("n", 25)).build();
+        graphQL.execute(input);
+        QueryProfile profile = input.getGraphQLContext().get(QueryProfile.CONTEXT_KEY);
+
+        Map<String, Object> entry = queryTiming.slowQueryEntry(profile, 1234);
+        assertThat(entry.get("operation"), is("Q"));
+        assertThat(entry.get("query"), is("query Q($var1:Int){count rows(first:$var1){name}}"));
+        assertThat(entry.get("variables"), is(QueryTiming.fingerprint(Map.of("n", 25))));
+        assertThat(entry.get("field_count"), is(2));
+        assertThat(((List<?>) entry.get("fields")).size(), is(2));
+    }
+}
@@ -0,0 +1,106 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueryWriterTest {
+    private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    private static String write(String value) {
+        return new QueryWriter().value(value).toString();
+    }
+
+    // Read back by Gson as the same string
+    private static void assertRoundTrip(String value) {
+        assertThat(JsonParser.parseString(write(value)).getAsString(), is(value));
+    }
+
+    @Test
+    public void controlCharactersAreEscaped_Test() {
+        StringBuilder controls = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            controls.append(c);
+        }
+        controls.append('\u007f').append('\u2028').append('\u2029');
+        String value = controls.toString();
+        assertRoundTrip(value);
+        // Nothing below 0x20 is written as is
+        for (byte b: write(value).getBytes(StandardCharsets.UTF_8)) {
+            assertThat((b & 0xff) >= 0x20, is(true));
+        }
+        assertThat(write("a\nb\tc"), is("\"a\\u000ab\\u0009c\""));
+        assertThat(write("\u2028"), is(gson.toJson("\u2028")));
+    }
+
+    @Test
+    public void quotesAndBackslashesAreEscapedAsGsonDoes_Test() {
+        for (String value: List.of("say \"hi\"", "C:\\path\\", "\\\"", "\"", "", "<a href='x'>&</a>")) {
+            assertThat(write(value), is(gson.toJson(value)));
+            assertRoundTrip(value);
+        }
+    }
+
+    @Test
+    public void nonAsciiIsWrittenAsUtf8_Test() {
+        List<String> values = List.of("M\u00fcller", "\u00e9t\u00e9 \u2013 \u20ac", "\u7814\u7a76", "\ud83e\uddec DNA \ud83d\ude00",
+                "\u07ff\u0800\uffff");
+        for (String value: values) {
+            byte[] bytes = new QueryWriter().value(value).toByteArray();
+            assertThat(new String(bytes, StandardCharsets.UTF_8), is(gson.toJson(value)));
+            assertThat(Arrays.equals(bytes, gson.toJson(value).getBytes(StandardCharsets.UTF_8)), is(true));
+        }
+        // Unpaired surrogates have no UTF-8 form, they are escaped and read back as they were
+        for (String value: List.of("\ud83e", "\uddec", "a\ud83eb", "\uddec\ud83e")) {
+            assertRoundTrip(value);
+        }
+        assertThat(write("\ud83e"), is("\"\\ud83e\""));
+    }
+
+    @Test
+    public void numbersAreFormattedAsGsonDoes_Test() {
+        List<Number> numbers = List.of(0, -1, Integer.MAX_VALUE, Long.MIN_VALUE, 12_345_678_901L, 0.1, -0.0, 1.0,
+                1e20, 1.5e-7, Double.MAX_VALUE, 0.1f, (short) 7, (byte) -3, new BigDecimal("1E+3"),
+                new BigDecimal("0.000001"), new BigInteger("123456789012345678901234567890"));
+        for (Number number: numbers) {
+            assertThat(new QueryWriter().value(number).toString(), is(gson.toJson(number)));
+        }
+        assertThat(new QueryWriter().value(Long.MAX_VALUE).toString(), is(gson.toJson(Long.MAX_VALUE)));
+        for (Number invalid: List.of(Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY)) {
+            try {
+                new QueryWriter().value(invalid);
+                fail(invalid + " written");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void documentsReadBackAsGsonWritesThem_Test() {
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("name", "quote \" slash \\ tab \t \ud83e\uddec");
+        inner.put("missing", null);
+        inner.put("count", 3);
+        inner.put("ratio", 0.25);
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("z", List.of(1, "two", false));
+        document.put("a", inner);
+        document.put("empty", Map.of());
+
+        QueryWriter writer = new QueryWriter(4).canonical(document);
+        assertThat(JsonParser.parseString(writer.toString()), is(new GsonBuilder().serializeNulls().create().toJsonTree(document)));
+        // reset() leaves nothing of the previous value behind
+        assertThat(writer.reset().beginObject().name("k").value("v").endObject().toString(), is("{\"k\":\"v\"}"));
+    }
+}
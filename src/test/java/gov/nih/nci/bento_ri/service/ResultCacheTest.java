@@ -0,0 +1,153 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ResultCacheTest {
+    private static final Set<String> RANGE_PARAMS = Set.of("fiscal_year");
+
+    private static ResultCache cache(long maxWeight) {
+        RedisResultStore redisStore = new RedisResultStore(false, false, "localhost", 6379, 60000, 2000);
+        return new ResultCache(true, Set.of("grantsOverview", "searchProjects"), maxWeight, 60000, redisStore,
+                new IndexGenerations(List.of()), new FanOutExecutor(2, 10, 5000));
+    }
+
+    // Page of rows with three values each
+    private static PitPage page(int rows) {
+        List<Map<String, Object>> values = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            values.add(Map.of("grant_id", "R01CA" + i, "title", "Title " + i, "award", i));
+        }
+        return new PitPage(values, null);
+    }
+
+    private static ResultCache.AsyncLoader<PitPage> counting(AtomicInteger loads, int rows) {
+        return () -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(page(rows));
+        };
+    }
+
+    private static Map<String, Object> params(Object... keysAndValues) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            params.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void pagesWeighTheirRows_Test() throws Exception {
+        assertThat(ResultCache.weigh(page(100)), greaterThan(300));
+        assertThat(ResultCache.weigh(page(100)), greaterThan(ResultCache.weigh(page(10)) * 9));
+
+        ResultCache cache = cache(100);
+        AtomicInteger smallLoads = new AtomicInteger();
+        AtomicInteger largeLoads = new AtomicInteger();
+        cache.getAsync("grantsOverview", "small", counting(smallLoads, 2)).get();
+        cache.getAsync("grantsOverview", "large", counting(largeLoads, 50)).get();
+        // Eviction runs in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.stats().get("evictions") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(cache.stats().get("evictions"), is(1L));
+
+        cache.getAsync("grantsOverview", "small", counting(smallLoads, 2)).get();
+        cache.getAsync("grantsOverview", "large", counting(largeLoads, 50)).get();
+        assertThat(smallLoads.get(), is(1));
+        assertThat(largeLoads.get(), is(2));
+    }
+
+    @Test
+    public void keysIgnoreTheOrderOfArguments_Test() throws Exception {
+        String key = ResultCache.argumentsKey(params("program", List.of("CCDI", "TCGA"), "fiscal_year", List.of(2000, 2010),
+                "empty", List.of(""), "none", List.of()), RANGE_PARAMS);
+        String permuted = ResultCache.argumentsKey(params("none", List.of(), "fiscal_year", List.of(2000, 2010),
+                "program", List.of("TCGA", "CCDI")), RANGE_PARAMS);
+        assertThat(permuted, is(key));
+        assertThat(key, is("[fiscal_year20002010, program[CCDI, TCGA]]"));
+        assertThat(ResultCache.argumentsKey(params("fiscal_year", List.of(2010, 2000)), RANGE_PARAMS),
+                is(not(ResultCache.argumentsKey(params("fiscal_year", List.of(2000, 2010)), RANGE_PARAMS))));
+        assertThat(ResultCache.argumentsKey(params("program", List.of("")), RANGE_PARAMS), is("all"));
+        try {
+            ResultCache.argumentsKey(params("fiscal_year", Arrays.asList(null, null)), RANGE_PARAMS);
+            fail("Range without bounds accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Permuted arguments hit the entry of the first call
+        ResultCache cache = cache(10000);
+        AtomicInteger loads = new AtomicInteger();
+        cache.getAsync("grantsOverview", key, counting(loads, 2)).get();
+        cache.getAsync("grantsOverview", permuted, counting(loads, 2)).get();
+        assertThat(loads.get(), is(1));
+        assertThat(cache.stats().get("hits"), is(1L));
+    }
+
+    @Test
+    public void concurrentCallersShareOneLoad_Test() throws Exception {
+        ResultCache cache = cache(10000);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<PitPage> pending = new CompletableFuture<>();
+        ResultCache.AsyncLoader<PitPage> loader = () -> {
+            loads.incrementAndGet();
+            return pending;
+        };
+        CompletableFuture<PitPage> first = cache.getAsync("grantsOverview", "all", loader);
+        CompletableFuture<PitPage> second = cache.getAsync("grantsOverview", "all", loader);
+        // Sync callers wait for the same load
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        List<Future<Object>> blocked = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            blocked.add(threads.submit(() -> cache.get("grantsOverview", "all", () -> {
+                loads.incrementAndGet();
+                return page(1);
+            })));
+        }
+        Thread.sleep(50);
+        assertThat(first.isDone(), is(false));
+        PitPage page = page(3);
+        pending.complete(page);
+
+        assertThat(first.get(5, TimeUnit.SECONDS), is(page));
+        assertThat(second.get(5, TimeUnit.SECONDS), is(page));
+        for (Future<Object> result: blocked) {
+            assertThat(result.get(5, TimeUnit.SECONDS), is(page));
+        }
+        assertThat(loads.get(), is(1));
+        threads.shutdown();
+
+        // Failed loads aren't kept, the next caller loads again
+        AtomicInteger failedLoads = new AtomicInteger();
+        ResultCache.AsyncLoader<PitPage> failing = () -> {
+            failedLoads.incrementAndGet();
+            return CompletableFuture.failedFuture(new IOException("Connection refused"));
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getAsync("grantsOverview", "failing", failing).get(5, TimeUnit.SECONDS);
+                fail("Failed load returned a result");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause() instanceof IOException, is(true));
+            }
+        }
+        assertThat(failedLoads.get(), is(2));
+
+        // Resolvers that aren't cached always load
+        cache.getAsync("idsLists", "all", loader).get();
+        cache.getAsync("idsLists", "all", loader).get();
+        assertThat(loads.get(), is(3));
+    }
+}
@@ -0,0 +1,88 @@
+package gov.nih.nci.bento_ri.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ResultCodecTest {
+    private static final RowProjector.Shape SHAPE = new RowProjector.Shape(new String[]{"grant_id", "title", "award"});
+
+    private static Object roundTrip(Object value) throws IOException {
+        return ResultCodec.decode(ResultCodec.encode(value));
+    }
+
+    private static void assertMalformed(byte[] bytes) {
+        try {
+            ResultCodec.decode(bytes);
+            fail("Decoded a malformed entry");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void nestedValuesRoundTrip_Test() throws IOException {
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("name", "M\u00fcller \u2013 \u7814\u7a76 \ud83e\uddec");
+        inner.put("missing", null);
+        inner.put("empty", "");
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("count", 42);
+        value.put("negative", -7);
+        value.put("total", 12_345_678_901L);
+        value.put("min_long", Long.MIN_VALUE);
+        value.put("ratio", 0.25);
+        value.put("open", true);
+        value.put("closed", false);
+        value.put("inner", inner);
+        value.put("list", Arrays.asList(1, "two", null, List.of(3L), Map.of()));
+        value.put("nothing", List.of());
+
+        Object decoded = roundTrip(value);
+        assertThat(decoded, is(value));
+        // Order of the keys is kept
+        assertThat(new ArrayList<>(((Map<?, ?>) decoded).keySet()), is(new ArrayList<>(value.keySet())));
+        assertThat(roundTrip(null), is((Object) null));
+    }
+
+    @Test
+    public void projectedRowsRoundTrip_Test() throws IOException {
+        List<Map<String, Object>> rows = List.of(
+                new ProjectedRow(SHAPE, new Object[]{"R01CA1", "\u00dcn\u00efcode title", 100}),
+                new ProjectedRow(SHAPE, new Object[]{"R01CA2", null, 2_000_000_000_000L}));
+        Object decoded = roundTrip(rows);
+
+        assertThat(decoded, is((Object) rows));
+        List<?> decodedRows = (List<?>) decoded;
+        assertThat(decodedRows.get(0), instanceOf(ProjectedRow.class));
+        // Rows read back share one shape, as rows of one projector do
+        assertThat(((ProjectedRow) decodedRows.get(0)).getShape() == ((ProjectedRow) decodedRows.get(1)).getShape(), is(true));
+
+        PitPage page = new PitPage(rows, "[\"R01CA2\",17]");
+        PitPage decodedPage = (PitPage) roundTrip(page);
+        assertThat(decodedPage.rows(), is((Object) rows));
+        assertThat(decodedPage.cursor(), is(page.cursor()));
+    }
+
+    @Test
+    public void malformedEntriesAreRejected_Test() throws IOException {
+        byte[] bytes = ResultCodec.encode(Map.of("grants", List.of("a", "b", "c")));
+        for (int length = 0; length < bytes.length; length++) {
+            assertMalformed(Arrays.copyOf(bytes, length));
+        }
+        // Unknown version
+        byte[] version = bytes.clone();
+        version[0] = 99;
+        assertMalformed(version);
+        // Unknown tag
+        assertMalformed(new byte[]{bytes[0], 42});
+        // String claiming a megabyte followed by nothing
+        assertMalformed(new byte[]{bytes[0], 6, (byte) 0x80, (byte) 0x80, 0x40});
+    }
+}
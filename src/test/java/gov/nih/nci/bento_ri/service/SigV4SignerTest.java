@@ -0,0 +1,78 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.http.HttpMethodName;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+// The optimized signer must produce exactly the signature of the AWS SDK signer
+public class SigV4SignerTest {
+    private static final String HOST = "search-ins.us-east-1.es.amazonaws.com";
+    private static final Instant NOW = Instant.parse("2026-03-14T15:09:26Z");
+
+    private static String sdkAuthorization(String method, String path, Map<String, List<String>> parameters, byte[] body, AWSCredentials credentials) {
+        DefaultRequest<?> request = new DefaultRequest<>("es");
+        request.setEndpoint(URI.create("https://" + HOST));
+        request.setHttpMethod(HttpMethodName.fromValue(method));
+        request.setResourcePath(path);
+        request.setParameters(parameters);
+        request.setContent(new ByteArrayInputStream(body));
+        AWS4Signer signer = new AWS4Signer();
+        signer.setServiceName("es");
+        signer.setRegionName("us-east-1");
+        signer.setOverrideDate(Date.from(NOW));
+        signer.sign(request, credentials);
+        return request.getHeaders().get("Authorization");
+    }
+
+    private static String authorization(String method, String rawPath, String rawQuery, byte[] body, AWSCredentials credentials) throws Exception {
+        SigV4Signer signer = new SigV4Signer("es", "us-east-1");
+        String payloadHash = SigV4Signer.payloadHash(body.length == 0 ? null : out -> out.write(body));
+        return signer.sign(method, HOST, rawPath, rawQuery, payloadHash, credentials, NOW).authorization();
+    }
+
+    @Test
+    public void searchWithBody_Test() throws Exception {
+        AWSCredentials credentials = new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+        byte[] body = "{\"query\":{\"match_all\":{}},\"size\":0}".getBytes(StandardCharsets.UTF_8);
+        Map<String, List<String>> parameters = new TreeMap<>();
+        parameters.put("request_cache", List.of("true"));
+        parameters.put("filter_path", List.of("hits.hits._source,hits.total"));
+        assertThat(authorization("GET", "/grants/_search", "request_cache=true&filter_path=hits.hits._source%2Chits.total", body, credentials),
+                is(sdkAuthorization("GET", "/grants/_search", parameters, body, credentials)));
+    }
+
+    @Test
+    public void sessionCredentialsWithoutBody_Test() throws Exception {
+        AWSCredentials credentials = new BasicSessionCredentials("ASIAEXAMPLE", "secret", "token/with+chars=");
+        Map<String, List<String>> parameters = new TreeMap<>();
+        parameters.put("format", List.of("json"));
+        parameters.put("h", List.of("index,uuid,docs.count,creation.date"));
+        assertThat(authorization("GET", "/_cat/indices/grants", "format=json&h=index%2Cuuid%2Cdocs.count%2Ccreation.date", new byte[0], credentials),
+                is(sdkAuthorization("GET", "/_cat/indices/grants", parameters, new byte[0], credentials)));
+    }
+
+    @Test
+    public void signingKeyFollowsTheSecret_Test() throws Exception {
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        AWSCredentials first = new BasicAWSCredentials("AKID1", "secret1");
+        AWSCredentials second = new BasicAWSCredentials("AKID2", "secret2");
+        SigV4Signer signer = new SigV4Signer("es", "us-east-1");
+        String payloadHash = SigV4Signer.payloadHash(out -> out.write(body));
+        signer.sign("POST", HOST, "/_search/point_in_time", null, payloadHash, first, NOW);
+        assertThat(signer.sign("POST", HOST, "/_search/point_in_time", null, payloadHash, second, NOW).authorization(),
+                is(sdkAuthorization("POST", "/_search/point_in_time", new TreeMap<>(), body, second)));
+    }
+}
@@ -0,0 +1,126 @@
+package gov.nih.nci.bento_ri.service;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.http.HttpMethodName;
+import org.apache.http.*;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Per-request signing cost of the SDK based interceptor (URIBuilder, header maps, AWS4Signer, entity copy,
+    credentials resolved through the provider chain each time) against AwsSigningInterceptor.
+    Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=gov.nih.nci.bento_ri.service.SigningBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SigningBenchmark {
+    private static final HttpHost TARGET = new HttpHost("search-ins.us-east-1.es.amazonaws.com", 443, "https");
+    private static final String URI_STRING = "/grants/_search?request_cache=true&filter_path=hits.hits._source%2Chits.total";
+
+    private byte[] body;
+    private HttpContext context;
+    private AWSCredentialsProvider chain;
+    private AWS4Signer sdkSigner;
+    private RefreshingCredentials refreshingCredentials;
+    private AwsSigningInterceptor interceptor;
+
+    @Setup
+    public void setUp() {
+        // Resolved by the system properties provider of the default chain
+        System.setProperty("aws.accessKeyId", "AKIDEXAMPLE");
+        System.setProperty("aws.secretKey", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+        StringBuilder query = new StringBuilder("{\"query\":{\"bool\":{\"filter\":[{\"terms\":{\"program_id\":[");
+        for (int i = 0; i < 200; i++) {
+            query.append(i == 0 ? "" : ",").append("\"program_").append(i).append('"');
+        }
+        query.append("]}}]}},\"size\":100,\"from\":0}");
+        body = query.toString().getBytes();
+        context = new BasicHttpContext();
+        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, TARGET);
+        chain = new DefaultAWSCredentialsProviderChain();
+        sdkSigner = new AWS4Signer();
+        sdkSigner.setServiceName("es");
+        sdkSigner.setRegionName("us-east-1");
+        refreshingCredentials = new RefreshingCredentials(chain, TimeUnit.MINUTES.toMillis(5));
+        interceptor = new AwsSigningInterceptor("es", "us-east-1", refreshingCredentials);
+    }
+
+    @TearDown
+    public void tearDown() {
+        refreshingCredentials.close();
+    }
+
+    private HttpRequest newRequest() {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("GET", URI_STRING);
+        request.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        request.setHeader(HttpHeaders.HOST, TARGET.toHostString());
+        request.setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.toString());
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest sdkInterceptor() throws Exception {
+        HttpRequest request = newRequest();
+        URIBuilder uriBuilder = new URIBuilder(request.getRequestLine().getUri());
+        DefaultRequest<?> signable = new DefaultRequest<>("es");
+        signable.setEndpoint(URI.create(((HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST)).toURI()));
+        signable.setHttpMethod(HttpMethodName.fromValue(request.getRequestLine().getMethod()));
+        signable.setResourcePath(uriBuilder.build().getRawPath());
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+        signable.setContent(enclosing.getEntity().getContent());
+        Map<String, List<String>> parameters = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (NameValuePair parameter: uriBuilder.getQueryParams()) {
+            parameters.computeIfAbsent(parameter.getName(), k -> new ArrayList<>()).add(parameter.getValue());
+        }
+        signable.setParameters(parameters);
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Header header: request.getAllHeaders()) {
+            if (!header.getName().equalsIgnoreCase(HttpHeaders.HOST)) {
+                headers.put(header.getName(), header.getValue());
+            }
+        }
+        signable.setHeaders(headers);
+        sdkSigner.sign(signable, chain.getCredentials());
+        List<Header> signed = new ArrayList<>();
+        for (var header: signable.getHeaders().entrySet()) {
+            signed.add(new BasicHeader(header.getKey(), header.getValue()));
+        }
+        request.setHeaders(signed.toArray(new Header[0]));
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(signable.getContent());
+        enclosing.setEntity(entity);
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest awsSigningInterceptor() throws Exception {
+        HttpRequest request = newRequest();
+        interceptor.process(request, context);
+        return request;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(SigningBenchmark.class.getSimpleName()).build()).run();
+    }
+}